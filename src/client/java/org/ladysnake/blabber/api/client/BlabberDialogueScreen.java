@@ -138,10 +138,45 @@ public class BlabberDialogueScreen<P extends DialogueLayout.Params> extends Hand
     protected void init() {
         super.init();
         this.prepareLayout();
+        this.createIllustrationRenderers();
+    }
+
+    protected void createIllustrationRenderers() {
         this.illustrations.clear();
         this.handler.getIllustrations().forEach((key, illustration) -> this.illustrations.put(key, BlabberClient.createRenderer(illustration)));
     }
 
+    /**
+     * Called when illustration data that this screen's dialogue may be missing arrives, e.g. the NBT of an entity illustration
+     */
+    public void onIllustrationDataLoaded() {
+        this.createIllustrationRenderers();
+    }
+
+    /**
+     * Called when states of a streamed dialogue arrive, which may include the current state and new illustrations
+     */
+    public void onStatesLoaded() {
+        this.prepareLayout();
+        this.handler.getIllustrations().forEach((key, illustration) -> this.illustrations.computeIfAbsent(key, k -> BlabberClient.createRenderer(illustration)));
+    }
+
+    /**
+     * Called when the server swaps a different dialogue into this screen, e.g. when a dialogue chains into another
+     */
+    public void onDialogueReplaced() {
+        this.selectedChoice = 0;
+        this.hoveringChoice = false;
+        this.prepareLayout();
+        Map<String, DialogueIllustrationRenderer<?>> previous = this.illustrations;
+        this.illustrations = new HashMap<>();
+        this.handler.getIllustrations().forEach((key, illustration) -> {
+            DialogueIllustrationRenderer<?> renderer = previous.get(key);
+            // Renderers may hold on to expensive things like entities, keep them if the illustration did not change
+            this.illustrations.put(key, renderer != null && renderer.getIllustration().equals(illustration) ? renderer : BlabberClient.createRenderer(illustration));
+        });
+    }
+
     @Override
     protected void drawBackground(MatrixStack matrices, float delta, int mouseX, int mouseY) {
         // NO OP
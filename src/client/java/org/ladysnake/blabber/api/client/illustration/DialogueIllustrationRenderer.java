@@ -36,6 +36,10 @@ public abstract class DialogueIllustrationRenderer<I extends DialogueIllustratio
         this.illustration = illustration;
     }
 
+    public I getIllustration() {
+        return this.illustration;
+    }
+
     /**
      * Draw this illustration to the screen.
      *
@@ -18,12 +18,13 @@
 package org.ladysnake.blabber.impl.client;
 
 import net.fabricmc.api.ClientModInitializer;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
 import net.minecraft.client.gui.screen.ingame.HandledScreens;
 import net.minecraft.entity.player.PlayerInventory;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.text.Text;
-import net.minecraft.util.Identifier;
 import org.ladysnake.blabber.Blabber;
 import org.ladysnake.blabber.api.client.BlabberDialogueScreen;
 import org.ladysnake.blabber.api.client.BlabberScreenRegistry;
@@ -34,8 +35,10 @@ import org.ladysnake.blabber.api.layout.DialogueLayout;
 import org.ladysnake.blabber.api.layout.DialogueLayoutType;
 import org.ladysnake.blabber.impl.client.illustrations.*;
 import org.ladysnake.blabber.impl.common.BlabberRegistrar;
-import org.ladysnake.blabber.impl.common.DialogueRegistry;
+import org.ladysnake.blabber.impl.common.DialogueListSync;
 import org.ladysnake.blabber.impl.common.DialogueScreenHandler;
+import org.ladysnake.blabber.impl.common.DialogueTemplateSync;
+import org.ladysnake.blabber.impl.common.IllustrationDataSync;
 import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationCollection;
 import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationItem;
 import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationTexture;
@@ -43,10 +46,8 @@ import org.ladysnake.blabber.impl.common.illustrations.entity.DialogueIllustrati
 import org.ladysnake.blabber.impl.common.illustrations.entity.DialogueIllustrationNbtEntity;
 import org.ladysnake.blabber.impl.common.illustrations.entity.DialogueIllustrationSelectorEntity;
 
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
 
 import static io.netty.buffer.Unpooled.buffer;
 
@@ -75,6 +76,8 @@ public final class BlabberClient implements ClientModInitializer {
         @SuppressWarnings("unchecked") HandledScreens.Provider<DialogueScreenHandler, BlabberDialogueScreen<P>> provider =
                 (HandledScreens.Provider<DialogueScreenHandler, BlabberDialogueScreen<P>>) screenRegistry.get(layoutType);
 
+        requestTemplateIfNeeded(handler);
+
         if (provider != null) {
             return provider.create(handler, inventory, title);
         }
@@ -83,6 +86,15 @@ public final class BlabberClient implements ClientModInitializer {
         return new BlabberDialogueScreen<>(handler, inventory, title);
     }
 
+    private static void requestTemplateIfNeeded(DialogueScreenHandler handler) {
+        if (handler.isAwaitingTemplate()) {
+            // The server will send the template and show the dialogue again
+            PacketByteBuf request = new PacketByteBuf(buffer());
+            request.writeVarInt(handler.syncId);
+            ClientPlayNetworking.send(BlabberRegistrar.TEMPLATE_REQUEST, request);
+        }
+    }
+
     public static void sendDialogueActionMessage(int choice) {
         PacketByteBuf buf = new PacketByteBuf(buffer());
         buf.writeByte(choice);
@@ -100,19 +112,100 @@ public final class BlabberClient implements ClientModInitializer {
         BlabberScreenRegistry.register(BlabberRegistrar.CLASSIC_LAYOUT, BlabberDialogueScreen::new);
         BlabberScreenRegistry.register(BlabberRegistrar.RPG_LAYOUT, BlabberRpgDialogueScreen::new);
         HandledScreens.register(BlabberRegistrar.DIALOGUE_SCREEN_HANDLER, (HandledScreens.Provider<DialogueScreenHandler, BlabberDialogueScreen<?>>) BlabberClient::createDialogueScreen);
-        ClientPlayNetworking.registerGlobalReceiver(
-                Blabber.id("dialogue_list"), ((client, handler, buf, responseSender) -> {
-                    DialogueRegistry.setClientIds(new HashSet<>(buf.<Identifier, Set<Identifier>>readCollection(HashSet::new, PacketByteBuf::readIdentifier)));
-                }));
-        ClientPlayNetworking.registerGlobalReceiver(Blabber.id("choice_availability"), (client, handler, buf, responseSender) -> {
-            if (client.player != null && client.player.currentScreenHandler instanceof DialogueScreenHandler dialogueScreenHandler) {
-                dialogueScreenHandler.handleAvailabilityUpdate(buf);
+        ClientPlayNetworking.registerGlobalReceiver(DialogueListSync.DIALOGUE_LIST, (client, handler, buf, responseSender) -> DialogueListSync.handleDialogueList(buf));
+        ClientPlayConnectionEvents.JOIN.register((handler, sender, client) -> sender.sendPacket(BlabberRegistrar.TEMPLATE_CACHE_STATE, DialogueTemplateSync.createCacheStatePacket()));
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> client.execute(IllustrationDataSync::onDisconnect));
+        // Illustration payloads can be found missing by any packet carrying a template, the ones read during a tick get requested together
+        ClientTickEvents.END_CLIENT_TICK.register(client -> {
+            if (client.getNetworkHandler() != null && ClientPlayNetworking.canSend(IllustrationDataSync.DATA_REQUEST)) {
+                IllustrationDataSync.requestMissingData(ClientPlayNetworking.getSender());
             }
         });
+        ClientPlayNetworking.registerGlobalReceiver(IllustrationDataSync.DATA, (client, handler, buf, responseSender) -> {
+            buf.retain();
+            client.execute(() -> {
+                try {
+                    if (IllustrationDataSync.handleData(buf) && client.currentScreen instanceof BlabberDialogueScreen<?> screen) {
+                        screen.onIllustrationDataLoaded();
+                    }
+                } finally {
+                    buf.release();
+                }
+            });
+        });
+        ClientPlayNetworking.registerGlobalReceiver(BlabberRegistrar.TEMPLATE_BODY, (client, handler, buf, responseSender) -> {
+            // Must be cached before any screen opening that follows, which gets handled on the main thread
+            buf.retain();
+            client.execute(() -> {
+                try {
+                    DialogueTemplateSync.handleTemplateBody(buf);
+                } finally {
+                    buf.release();
+                }
+            });
+        });
+        ClientPlayNetworking.registerGlobalReceiver(BlabberRegistrar.TEMPLATE_CHUNK, (client, handler, buf, responseSender) -> {
+            buf.retain();
+            client.execute(() -> {
+                try {
+                    DialogueTemplateSync.LoadedStates loaded = DialogueTemplateSync.handleTemplateChunk(buf);
+                    if (loaded != null && client.player != null && client.player.currentScreenHandler instanceof DialogueScreenHandler dialogueScreenHandler) {
+                        if (dialogueScreenHandler.loadStates(loaded)) {
+                            // Availability updates for states we did not have yet got skipped
+                            PacketByteBuf resyncRequest = new PacketByteBuf(buffer());
+                            resyncRequest.writeVarInt(dialogueScreenHandler.syncId);
+                            responseSender.sendPacket(BlabberRegistrar.AVAILABILITY_RESYNC, resyncRequest);
+                        }
+                        if (client.currentScreen instanceof BlabberDialogueScreen<?> screen && screen.getScreenHandler() == dialogueScreenHandler) {
+                            screen.onStatesLoaded();
+                        }
+                    }
+                } finally {
+                    buf.release();
+                }
+            });
+        });
+        ClientPlayNetworking.registerGlobalReceiver(BlabberRegistrar.REPLACE_DIALOGUE, (client, handler, buf, responseSender) -> {
+            buf.retain();
+            client.execute(() -> {
+                try {
+                    int syncId = buf.readVarInt();
+                    if (client.player != null && client.player.currentScreenHandler instanceof DialogueScreenHandler dialogueScreenHandler && dialogueScreenHandler.syncId == syncId) {
+                        dialogueScreenHandler.replaceDialogue(client.player, buf);
+                        requestTemplateIfNeeded(dialogueScreenHandler);
+                        if (client.currentScreen instanceof BlabberDialogueScreen<?> screen && screen.getScreenHandler() == dialogueScreenHandler) {
+                            screen.onDialogueReplaced();
+                        }
+                    }
+                } finally {
+                    buf.release();
+                }
+            });
+        });
+        // The following packets must be handled on the main thread too, to stay in order with dialogue replacements
+        ClientPlayNetworking.registerGlobalReceiver(BlabberRegistrar.CHOICE_AVAILABILITY, (client, handler, buf, responseSender) -> {
+            buf.retain();
+            client.execute(() -> {
+                try {
+                    if (client.player != null && client.player.currentScreenHandler instanceof DialogueScreenHandler dialogueScreenHandler) {
+                        if (!dialogueScreenHandler.handleAvailabilityUpdate(buf)) {
+                            PacketByteBuf resyncRequest = new PacketByteBuf(buffer());
+                            resyncRequest.writeVarInt(dialogueScreenHandler.syncId);
+                            responseSender.sendPacket(BlabberRegistrar.AVAILABILITY_RESYNC, resyncRequest);
+                        }
+                    }
+                } finally {
+                    buf.release();
+                }
+            });
+        });
         ClientPlayNetworking.registerGlobalReceiver(Blabber.id("selected_dialogue_state"), (client, handler, buf, responseSender) -> {
-            if (client.player != null && client.player.currentScreenHandler instanceof DialogueScreenHandler dialogueScreenHandler) {
-                dialogueScreenHandler.setCurrentState(buf.readString());
-            }
+            int stateIndex = buf.readVarInt();
+            client.execute(() -> {
+                if (client.player != null && client.player.currentScreenHandler instanceof DialogueScreenHandler dialogueScreenHandler) {
+                    dialogueScreenHandler.setCurrentState(stateIndex);
+                }
+            });
         });
 
 
@@ -33,6 +33,7 @@ import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.ApiStatus;
 import org.jetbrains.annotations.Nullable;
 import org.ladysnake.blabber.api.DialogueActionV2;
+import org.ladysnake.blabber.api.DialogueCondition;
 import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
 import org.ladysnake.blabber.api.layout.DialogueLayoutType;
 import org.ladysnake.blabber.impl.common.BlabberRegistrar;
@@ -40,6 +41,9 @@ import org.ladysnake.blabber.impl.common.CommandDialogueAction;
 import org.ladysnake.blabber.impl.common.DialogueInitializationException;
 import org.ladysnake.blabber.impl.common.PlayerDialogueTracker;
 import org.ladysnake.blabber.impl.common.commands.BlabberCommand;
+import org.ladysnake.blabber.impl.common.conditions.HealthCondition;
+import org.ladysnake.blabber.impl.common.conditions.HoldingItemCondition;
+import org.ladysnake.blabber.impl.common.conditions.ScoreboardTagCondition;
 import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationCollection;
 import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationItem;
 import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationTexture;
@@ -146,6 +150,18 @@ public final class Blabber implements ModInitializer {
 		Registry.register(BlabberRegistrar.ACTION_REGISTRY, actionId, codec);
 	}
 
+	/**
+	 * Register a configurable {@link DialogueCondition} to test whether dialogue choices are available.
+	 *
+	 * <p>Dialogue conditions are a faster alternative to loot predicates, as they get tested directly against the player.
+	 *
+	 * @param conditionId the identifier used to reference the condition type in dialogue definition files
+	 * @param codec       a codec for deserializing dialogue conditions
+	 */
+	public static void registerCondition(Identifier conditionId, Codec<? extends DialogueCondition> codec) {
+		Registry.register(BlabberRegistrar.CONDITION_REGISTRY, conditionId, codec);
+	}
+
 	/**
 	 * Register a configurable {@link DialogueIllustrationType} to draw extra features in dialogues.
 	 *
@@ -172,6 +188,9 @@ public final class Blabber implements ModInitializer {
 		BlabberRegistrar.init();
 		CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> BlabberCommand.register(dispatcher));
 		registerAction(id("command"), CommandDialogueAction.CODEC);
+		registerCondition(id("holding_item"), HoldingItemCondition.CODEC);
+		registerCondition(id("health"), HealthCondition.CODEC);
+		registerCondition(id("scoreboard_tag"), ScoreboardTagCondition.CODEC);
 		registerLayout(id("classic"), BlabberRegistrar.CLASSIC_LAYOUT);
 		registerLayout(id("rpg"), BlabberRegistrar.RPG_LAYOUT);
 		registerIllustration(id("group"), DialogueIllustrationCollection.TYPE);
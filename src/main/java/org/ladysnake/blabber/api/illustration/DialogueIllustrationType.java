@@ -18,10 +18,12 @@
 package org.ladysnake.blabber.api.illustration;
 
 import com.mojang.serialization.Codec;
+import io.netty.handler.codec.DecoderException;
 import net.minecraft.network.PacketByteBuf;
 import org.jetbrains.annotations.ApiStatus;
 import org.ladysnake.blabber.impl.common.BlabberRegistrar;
 import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationCollection;
+import org.ladysnake.blabber.impl.common.serialization.CompactPacketByteBuf;
 import org.ladysnake.blabber.impl.common.serialization.EitherCodecButGood;
 import org.ladysnake.blabber.impl.common.serialization.RecursiveCodec;
 
@@ -78,6 +80,34 @@ public final class DialogueIllustrationType<T extends DialogueIllustration> {
         this.write.accept(buf, toWrite);
     }
 
+    /**
+     * Writes an illustration along with its type, or a reference to an identical illustration if the buffer supports it
+     */
+    @ApiStatus.Internal
+    public static void writeIllustration(PacketByteBuf buf, DialogueIllustration illustration) {
+        if (buf instanceof CompactPacketByteBuf compact && compact.writeIllustrationReference(illustration)) return;
+        // Write the type, then the packet itself.
+        buf.writeRegistryValue(BlabberRegistrar.ILLUSTRATION_REGISTRY, illustration.getType());
+        illustration.getType().writeToPacketUnsafe(buf, illustration);
+        if (buf instanceof CompactPacketByteBuf compact) compact.markIllustrationWritten(illustration);
+    }
+
+    /**
+     * @see #writeIllustration(PacketByteBuf, DialogueIllustration)
+     */
+    @ApiStatus.Internal
+    public static DialogueIllustration readIllustration(PacketByteBuf buf) {
+        if (buf instanceof CompactPacketByteBuf compact) {
+            DialogueIllustration reference = compact.readIllustrationReference();
+            if (reference != null) return reference;
+        }
+        DialogueIllustrationType<?> type = buf.readRegistryValue(BlabberRegistrar.ILLUSTRATION_REGISTRY);
+        if (type == null) throw new DecoderException("Unknown dialogue illustration type");
+        DialogueIllustration illustration = type.readFromPacket(buf);
+        if (buf instanceof CompactPacketByteBuf compact) compact.markIllustrationRead(illustration);
+        return illustration;
+    }
+
     /**
      * Same as writeToPacket, but does an unchecked cast, for when the type information is lost somewhere.
      * Make sure it's safe.
@@ -25,46 +25,61 @@ import dev.onyxstudios.cca.api.v3.entity.EntityComponentInitializer;
 import dev.onyxstudios.cca.api.v3.entity.RespawnCopyStrategy;
 import net.fabricmc.fabric.api.command.v2.ArgumentTypeRegistry;
 import net.fabricmc.fabric.api.event.registry.FabricRegistryBuilder;
-import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import net.fabricmc.fabric.api.gamerule.v1.GameRuleFactory;
+import net.fabricmc.fabric.api.gamerule.v1.GameRuleRegistry;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.fabricmc.fabric.api.screenhandler.v1.ExtendedScreenHandlerType;
 import net.minecraft.command.CommandSource;
 import net.minecraft.command.argument.serialize.ConstantArgumentSerializer;
 import net.minecraft.command.suggestion.SuggestionProviders;
-import net.minecraft.entity.Entity;
-import net.minecraft.network.PacketByteBuf;
 import net.minecraft.screen.ScreenHandlerType;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.registry.Registry;
 import net.minecraft.util.registry.RegistryKey;
 import net.minecraft.util.registry.SimpleRegistry;
+import net.minecraft.world.GameRules;
 import org.ladysnake.blabber.Blabber;
 import org.ladysnake.blabber.api.DialogueActionV2;
+import org.ladysnake.blabber.api.DialogueCondition;
 import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
 import org.ladysnake.blabber.api.layout.DefaultLayoutParams;
 import org.ladysnake.blabber.api.layout.DialogueLayoutType;
 import org.ladysnake.blabber.impl.common.commands.SettingArgumentType;
-import org.ladysnake.blabber.impl.common.machine.DialogueStateMachine;
 import org.ladysnake.blabber.impl.common.settings.BlabberSettingsComponent;
 
-import java.util.Optional;
-import java.util.Set;
-
 public final class BlabberRegistrar implements EntityComponentInitializer {
-    public static final ScreenHandlerType<DialogueScreenHandler> DIALOGUE_SCREEN_HANDLER = Registry.register(Registry.SCREEN_HANDLER, Blabber.id("dialogue"), new ExtendedScreenHandlerType<>((syncId, inventory, buf) -> {
-        DialogueStateMachine dialogue = new DialogueStateMachine(buf);
-        Optional<Entity> interlocutor = buf.readOptional(PacketByteBuf::readVarInt).map(inventory.player.getWorld()::getEntityById);
-        dialogue.applyAvailabilityUpdate(buf);
-        return new DialogueScreenHandler(syncId, dialogue, interlocutor.orElse(null));
-    }));
+    public static final ScreenHandlerType<DialogueScreenHandler> DIALOGUE_SCREEN_HANDLER = Registry.register(Registry.SCREEN_HANDLER, Blabber.id("dialogue"), new ExtendedScreenHandlerType<>((syncId, inventory, buf) -> DialogueScreenHandler.fromOpeningData(syncId, inventory.player, buf)));
     public static final Identifier DIALOGUE_ACTION = Blabber.id("dialogue_action");
+    public static final Identifier CHOICE_AVAILABILITY = Blabber.id("choice_availability");
+    public static final Identifier AVAILABILITY_RESYNC = Blabber.id("availability_resync");
+    public static final Identifier TEMPLATE_CACHE_STATE = Blabber.id("template_cache_state");
+    public static final Identifier TEMPLATE_REQUEST = Blabber.id("template_request");
+    public static final Identifier TEMPLATE_BODY = Blabber.id("template_body");
+    public static final Identifier TEMPLATE_CHUNK = Blabber.id("template_chunk");
+    /**
+     * Replaces the dialogue of the open screen with the one a session switched to
+     */
+    public static final Identifier REPLACE_DIALOGUE = Blabber.id("replace_dialogue");
+    /**
+     * Maximum number of choice conditions tested across all dialogues in a single server tick
+     */
+    public static final GameRules.Key<GameRules.IntRule> CONDITION_REFRESH_BUDGET = GameRuleRegistry.register("blabberConditionRefreshBudget", GameRules.Category.MISC, GameRuleFactory.createIntRule(1000, 1));
+    /**
+     * Whether choice conditions should only be refreshed when the player state they depend on changes
+     */
+    public static final GameRules.Key<GameRules.BooleanRule> REACTIVE_CONDITION_REFRESH = GameRuleRegistry.register("blabberReactiveConditionRefresh", GameRules.Category.MISC, GameRuleFactory.createBooleanRule(false));
     public static final RegistryKey<Registry<Codec<? extends DialogueActionV2>>> ACTION_REGISTRY_KEY = RegistryKey.ofRegistry(Blabber.id("dialogue_actions"));
     public static final Registry<Codec<? extends DialogueActionV2>> ACTION_REGISTRY = FabricRegistryBuilder.from(
             new SimpleRegistry<>(ACTION_REGISTRY_KEY, Lifecycle.stable(), null)
     ).buildAndRegister();
 
+    public static final RegistryKey<Registry<Codec<? extends DialogueCondition>>> CONDITION_REGISTRY_KEY = RegistryKey.ofRegistry(Blabber.id("dialogue_conditions"));
+    public static final Registry<Codec<? extends DialogueCondition>> CONDITION_REGISTRY = FabricRegistryBuilder.from(
+            new SimpleRegistry<>(CONDITION_REGISTRY_KEY, Lifecycle.stable(), null)
+    ).buildAndRegister();
+
     public static final RegistryKey<Registry<DialogueIllustrationType<?>>> ILLUSTRATION_REGISTRY_KEY = RegistryKey.ofRegistry(Blabber.id("dialogue_illustrations"));
     public static final Registry<DialogueIllustrationType<?>> ILLUSTRATION_REGISTRY = FabricRegistryBuilder.from(
             new SimpleRegistry<>(ILLUSTRATION_REGISTRY_KEY, Lifecycle.stable(), null)
@@ -87,23 +102,22 @@ public final class BlabberRegistrar implements EntityComponentInitializer {
         ArgumentTypeRegistry.registerArgumentType(Blabber.id("setting"), SettingArgumentType.class, ConstantArgumentSerializer.of(SettingArgumentType::setting));
 
         DialogueLoader.init();
+        DialogueSessionScheduler.init();
+        DialogueTemplateSync.init();
+        DialogueListSync.init();
+        IllustrationDataSync.init();
+        DialogueActionThrottle.init();
         ServerPlayNetworking.registerGlobalReceiver(DIALOGUE_ACTION, (server, player, handler, buf, responseSender) -> {
             int choice = buf.readByte();
-            server.execute(() -> {
-                if (player.currentScreenHandler instanceof DialogueScreenHandler dialogueHandler) {
-                    if (!dialogueHandler.makeChoice(player, choice)) {
-                        responseSender.sendPacket(Blabber.id("selected_dialogue_state"), PacketByteBufs.create().writeString(dialogueHandler.getCurrentStateKey()));
-                    }
-                }
-            });
+            DialogueActionThrottle.submit(server, player, choice, responseSender);
+        });
+        ServerPlayNetworking.registerGlobalReceiver(AVAILABILITY_RESYNC, (server, player, handler, buf, responseSender) -> {
+            int syncId = buf.readVarInt();
+            DialogueActionThrottle.submitAvailabilityResync(server, player, syncId, responseSender);
         });
         ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
-            if (ServerPlayNetworking.canSend(handler, Blabber.id("dialogue_list"))) {
-                Set<Identifier> dialogueIds = DialogueRegistry.getIds();
-                PacketByteBuf packetByteBuf = PacketByteBufs.create();
-                packetByteBuf.writeCollection(dialogueIds, PacketByteBuf::writeIdentifier);
-                ;
-                sender.sendPacket(Blabber.id("dialogue_list"), packetByteBuf);
+            if (ServerPlayNetworking.canSend(handler, DialogueListSync.DIALOGUE_LIST)) {
+                DialogueListSync.sendFullList(handler.getPlayer(), sender);
             } else {
                 Blabber.LOGGER.warn("{} does not have Blabber installed, this will cause issues if they trigger a dialogue", handler.getPlayer().getEntityName());
             }
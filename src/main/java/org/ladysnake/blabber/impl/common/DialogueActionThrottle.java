@@ -0,0 +1,290 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import net.fabricmc.fabric.api.networking.v1.PacketSender;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.Blabber;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits each player to one packet of each kind per server tick, for the packets that make the server do some work:
+ * dialogue choices, availability resyncs and illustration data requests.
+ *
+ * <p>The first packet of a kind a player sends in a tick gets handled as usual. Any other packet of that kind that arrives before the end of
+ * that tick gets dropped right away on the network thread, so that flooding clients cost no tick time. What the dropped packets asked for
+ * then gets answered once at the end of the tick:
+ * <ul>
+ *     <li>the client already moved on locally when it sent dropped choices, so it gets sent back to the server's current state</li>
+ *     <li>dropped resyncs get a single full availability update</li>
+ *     <li>payloads asked for by dropped illustration data requests get sent together, up to the size limit of a single request</li>
+ * </ul>
+ *
+ * <p>Dropped packets are counted per player, for operators to look at through {@code /blabber stats actions}.
+ * The counters of the last {@value #MAX_RETAINED_PLAYERS} players who left with some dropped packets are kept around.
+ */
+public final class DialogueActionThrottle {
+    private static final int MAX_RETAINED_PLAYERS = 64;
+    private static final int NO_SYNC_ID = Integer.MIN_VALUE;
+
+    private static final Map<UUID, PlayerActions> players = new ConcurrentHashMap<>();
+    /**
+     * Players who had a packet handled during the current tick, only touched by the server thread
+     */
+    private static final Set<PlayerActions> handledThisTick = new LinkedHashSet<>();
+    /**
+     * Players who left with some dropped packets, oldest first, only touched by the server thread
+     */
+    private static final Deque<UUID> retainedPlayers = new ArrayDeque<>();
+    private static final AtomicLong totalDropped = new AtomicLong();
+
+    private DialogueActionThrottle() {
+    }
+
+    public static void init() {
+        ServerTickEvents.END_SERVER_TICK.register(DialogueActionThrottle::endTick);
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> onDisconnect(server, handler.getPlayer().getUuid()));
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+            players.clear();
+            handledThisTick.clear();
+            retainedPlayers.clear();
+            totalDropped.set(0);
+        });
+    }
+
+    /**
+     * Queues a choice received on {@link BlabberRegistrar#DIALOGUE_ACTION}, unless one already got queued this tick.
+     * Called on the network thread.
+     */
+    static void submit(MinecraftServer server, ServerPlayerEntity player, int choice, PacketSender responseSender) {
+        PlayerActions actions = getActions(player);
+        if (!actions.tryPass(Gate.CHOICE)) {
+            actions.desynced = true;
+            return;
+        }
+        server.execute(() -> {
+            actions.markHandled(player, responseSender);
+            if (player.currentScreenHandler instanceof DialogueScreenHandler dialogueHandler && !dialogueHandler.makeChoice(player, choice)) {
+                actions.desynced = true;
+            }
+        });
+    }
+
+    /**
+     * Queues a request received on {@link BlabberRegistrar#AVAILABILITY_RESYNC}, unless one already got queued this tick.
+     * Called on the network thread.
+     */
+    static void submitAvailabilityResync(MinecraftServer server, ServerPlayerEntity player, int syncId, PacketSender responseSender) {
+        PlayerActions actions = getActions(player);
+        if (!actions.tryPass(Gate.AVAILABILITY_RESYNC)) {
+            actions.droppedResyncId = syncId;
+            return;
+        }
+        server.execute(() -> {
+            actions.markHandled(player, responseSender);
+            sendFullAvailability(player, syncId, responseSender);
+        });
+    }
+
+    /**
+     * Answers a request received on {@link IllustrationDataSync#DATA_REQUEST}, unless one already got answered this tick.
+     * Called on the network thread.
+     */
+    static void submitDataRequest(MinecraftServer server, ServerPlayerEntity player, long[] hashes, PacketSender responseSender) {
+        PlayerActions actions = getActions(player);
+        if (!actions.tryPass(Gate.ILLUSTRATION_DATA)) {
+            synchronized (actions.droppedDataRequests) {
+                for (int i = 0; i < hashes.length && actions.droppedDataRequests.size() < IllustrationDataSync.MAX_REQUESTED_PAYLOADS; i++) {
+                    actions.droppedDataRequests.add(hashes[i]);
+                }
+            }
+            return;
+        }
+        // Served payloads never change once written, no need to wait for the server thread
+        responseSender.sendPacket(IllustrationDataSync.DATA, IllustrationDataSync.createDataPacket(hashes));
+        server.execute(() -> actions.markHandled(player, responseSender));
+    }
+
+    private static PlayerActions getActions(ServerPlayerEntity player) {
+        return players.computeIfAbsent(player.getUuid(), uuid -> new PlayerActions(player.getEntityName()));
+    }
+
+    private static void sendFullAvailability(ServerPlayerEntity player, int syncId, PacketSender responseSender) {
+        if (player.currentScreenHandler instanceof DialogueScreenHandler dialogueHandler && dialogueHandler.syncId == syncId) {
+            responseSender.sendPacket(BlabberRegistrar.CHOICE_AVAILABILITY, dialogueHandler.createFullAvailabilityUpdatePacket());
+        }
+    }
+
+    private static void endTick(MinecraftServer server) {
+        if (handledThisTick.isEmpty()) return;
+
+        for (PlayerActions actions : handledThisTick) {
+            // Only let the next packets through now, so that at most one of each kind gets handled per tick
+            actions.passedGates.set(0);
+            ServerPlayerEntity player = actions.player;
+            PacketSender responseSender = actions.responseSender;
+            actions.player = null;
+            actions.responseSender = null;
+            if (player == null || responseSender == null) continue;
+
+            if (actions.desynced) {
+                actions.desynced = false;
+                if (player.currentScreenHandler instanceof DialogueScreenHandler dialogueHandler) {
+                    responseSender.sendPacket(Blabber.id("selected_dialogue_state"), PacketByteBufs.create().writeVarInt(dialogueHandler.getCurrentStateIndex()));
+                }
+            }
+            int resyncId = actions.droppedResyncId;
+            if (resyncId != NO_SYNC_ID) {
+                actions.droppedResyncId = NO_SYNC_ID;
+                sendFullAvailability(player, resyncId, responseSender);
+            }
+            long[] hashes = null;
+            synchronized (actions.droppedDataRequests) {
+                if (!actions.droppedDataRequests.isEmpty()) {
+                    hashes = actions.droppedDataRequests.toLongArray();
+                    actions.droppedDataRequests.clear();
+                }
+            }
+            if (hashes != null) {
+                responseSender.sendPacket(IllustrationDataSync.DATA, IllustrationDataSync.createDataPacket(hashes));
+            }
+        }
+        handledThisTick.clear();
+    }
+
+    private static void onDisconnect(MinecraftServer server, UUID uuid) {
+        PlayerActions actions = players.get(uuid);
+        if (actions == null) return;
+        if (actions.dropped.get() == 0) {
+            players.remove(uuid);
+            return;
+        }
+        // Counters of players who dropped some packets stay around for a while, so that the culprits can be found after they left
+        retainedPlayers.remove(uuid);
+        retainedPlayers.addLast(uuid);
+        while (retainedPlayers.size() > MAX_RETAINED_PLAYERS) {
+            UUID oldest = retainedPlayers.removeFirst();
+            if (server.getPlayerManager().getPlayer(oldest) == null) {
+                players.remove(oldest);
+            }
+        }
+    }
+
+    /**
+     * @return the number of packets dropped since the server started, across all players
+     */
+    public static long getTotalDropped() {
+        return totalDropped.get();
+    }
+
+    /**
+     * @return the number of dropped packets of every player who got some dropped, by player name
+     */
+    public static Map<String, Long> getDroppedByPlayer() {
+        Map<String, Long> dropped = new HashMap<>();
+        for (PlayerActions actions : players.values()) {
+            long count = actions.dropped.get();
+            if (count > 0) dropped.merge(actions.playerName, count, Long::sum);
+        }
+        return dropped;
+    }
+
+    public static void resetCounters(MinecraftServer server) {
+        totalDropped.set(0);
+        for (PlayerActions actions : players.values()) {
+            actions.dropped.set(0);
+        }
+        // Players who left were only kept for their counters
+        for (UUID uuid : retainedPlayers) {
+            if (server.getPlayerManager().getPlayer(uuid) == null) players.remove(uuid);
+        }
+        retainedPlayers.clear();
+    }
+
+    private enum Gate {
+        CHOICE,
+        AVAILABILITY_RESYNC,
+        ILLUSTRATION_DATA;
+
+        private final int mask = 1 << this.ordinal();
+    }
+
+    private static final class PlayerActions {
+        private final String playerName;
+        /**
+         * The {@link Gate}s a packet went through, from the moment it got accepted until the end of the tick that handled it
+         */
+        private final AtomicInteger passedGates = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+        /**
+         * Whether the client should be told the server's current state, because some of its choices were not applied
+         */
+        private volatile boolean desynced;
+        /**
+         * The screen handler that a dropped resync asked about, or {@link #NO_SYNC_ID}
+         */
+        private volatile int droppedResyncId = NO_SYNC_ID;
+        /**
+         * Payloads asked for by dropped data requests, guarded by itself
+         */
+        private final LongSet droppedDataRequests = new LongLinkedOpenHashSet();
+        private @Nullable ServerPlayerEntity player;
+        private @Nullable PacketSender responseSender;
+
+        PlayerActions(String playerName) {
+            this.playerName = playerName;
+        }
+
+        /**
+         * Lets the first packet of each kind through every tick, and counts the others as dropped
+         */
+        boolean tryPass(Gate gate) {
+            if ((this.passedGates.getAndUpdate(gates -> gates | gate.mask) & gate.mask) == 0) return true;
+            this.dropped.incrementAndGet();
+            totalDropped.incrementAndGet();
+            return false;
+        }
+
+        /**
+         * Called on the server thread when a packet that went through gets handled
+         */
+        void markHandled(ServerPlayerEntity player, PacketSender responseSender) {
+            handledThisTick.add(this);
+            this.player = player;
+            this.responseSender = responseSender;
+        }
+    }
+}
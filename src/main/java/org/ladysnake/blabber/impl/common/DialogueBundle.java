@@ -0,0 +1,347 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import com.google.common.hash.HashCode;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.JsonOps;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.EncoderException;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.impl.common.model.DialogueChoice;
+import org.ladysnake.blabber.impl.common.model.DialogueChoiceCondition;
+import org.ladysnake.blabber.impl.common.model.DialogueState;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.serialization.CompactPacketByteBuf;
+import org.ladysnake.blabber.impl.common.validation.ValidationResult;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A file holding the compiled template of every dialogue of a successful load, so that later startups with the same datapacks
+ * can skip reading and validating their JSON (enabled with {@code -Dblabber.dialogueBundle=true}).
+ *
+ * <p>The bundle is keyed by a fingerprint of the loaded dialogue files. When it matches, its templates are known to be valid,
+ * and each one only gets decoded from the mapped file the first time it is used.
+ * Each template comes with the loot predicates it references and the warnings it got when validated,
+ * so that reloads can still report missing predicates without decoding it.
+ *
+ * <p>Templates are compiled to their {@linkplain DialogueTemplateSync.EncodedTemplate compact network encoding},
+ * along with what that encoding leaves out: the payloads of illustrations, which are only referenced by hash,
+ * then state actions and choice conditions, stored as JSON.
+ *
+ * <p>Layout: magic number, format version, fingerprint, then an index of {@code (location, offset, length, referenced predicates, warnings)} entries,
+ * followed by the compiled template of each file. Offsets start from the end of the index.
+ *
+ * <p>A new bundle gets written next to the existing one, then swapped in. Open bundles keep reading the file they mapped,
+ * except on Windows, where a file cannot be replaced while mapped: the bundle then only gets replaced by the next startup.
+ */
+final class DialogueBundle {
+    private static final int MAGIC = 0x424C4244;   // "BLBD"
+    private static final int FORMAT_VERSION = 3;
+    private static final int NO_CONDITION = 0;
+    private static final int PREDICATE = 1;
+    private static final int NATIVE_CONDITION = 2;
+    private static final int UNREACHABLE = 0;
+    private static final int CONDITIONAL_SOFT_LOCK = 1;
+
+    private final MappedByteBuffer data;
+    private final int contentStart;
+    private final Map<Identifier, Entry> entries;
+
+    private DialogueBundle(MappedByteBuffer data, int contentStart, Map<Identifier, Entry> entries) {
+        this.data = data;
+        this.contentStart = contentStart;
+        this.entries = entries;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean("blabber.dialogueBundle");
+    }
+
+    static Path getBundleFile() {
+        return FabricLoader.getInstance().getConfigDir().resolve(Blabber.MOD_ID).resolve("dialogues.bundle");
+    }
+
+    /**
+     * @return the bundle stored in {@code file}, or {@code null} if there is none or it was made from different dialogue files
+     */
+    static @Nullable DialogueBundle open(Path file, HashCode fingerprint) {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Blabber.LOGGER.warn("(Blabber) Could not open the dialogue bundle at {}", file, e);
+            return null;
+        }
+
+        try {
+            PacketByteBuf buf = new PacketByteBuf(Unpooled.wrappedBuffer(data.duplicate()));
+            if (buf.readInt() != MAGIC || buf.readVarInt() != FORMAT_VERSION) {
+                Blabber.LOGGER.info("(Blabber) Ignoring the dialogue bundle at {}, it was written by another version", file);
+                return null;
+            }
+            byte[] storedFingerprint = new byte[fingerprint.bits() / Byte.SIZE];
+            buf.readBytes(storedFingerprint);
+            if (!HashCode.fromBytes(storedFingerprint).equals(fingerprint)) {
+                Blabber.LOGGER.info("(Blabber) Dialogue files changed since the dialogue bundle was written, loading them from JSON");
+                return null;
+            }
+            int count = buf.readVarInt();
+            Map<Identifier, Entry> entries = new HashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.put(buf.readIdentifier(), new Entry(buf.readVarInt(), buf.readVarInt(), buf.readMap(PacketByteBuf::readIdentifier, PacketByteBuf::readString), readValidation(buf)));
+            }
+            int contentStart = buf.readerIndex();
+            for (Entry entry : entries.values()) {
+                if (entry.offset() < 0 || entry.length() < 0 || (long) contentStart + entry.offset() + entry.length() > data.capacity()) {
+                    throw new IndexOutOfBoundsException("Dialogue bundle entry out of bounds");
+                }
+            }
+            return new DialogueBundle(data, contentStart, entries);
+        } catch (RuntimeException e) {
+            Blabber.LOGGER.warn("(Blabber) Ignoring corrupted dialogue bundle at {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a bundle next to the existing one, then swaps them, so that a crash never leaves a truncated bundle behind
+     *
+     * @param files every file that made up a successful load
+     */
+    static synchronized void write(Path file, HashCode fingerprint, List<CompiledFile> files) {
+        List<PacketByteBuf> compiledTemplates = new ArrayList<>(files.size());
+        PacketByteBuf index = new PacketByteBuf(Unpooled.buffer());
+        index.writeInt(MAGIC);
+        index.writeVarInt(FORMAT_VERSION);
+        index.writeBytes(fingerprint.asBytes());
+        index.writeVarInt(files.size());
+        int offset = 0;
+        try {
+            for (CompiledFile compiledFile : files) {
+                PacketByteBuf compiled = compile(compiledFile.template());
+                compiledTemplates.add(compiled);
+                index.writeIdentifier(compiledFile.location());
+                index.writeVarInt(offset);
+                index.writeVarInt(compiled.readableBytes());
+                index.writeMap(compiledFile.referencedPredicates(), PacketByteBuf::writeIdentifier, PacketByteBuf::writeString);
+                writeValidation(index, compiledFile.validation());
+                offset += compiled.readableBytes();
+            }
+        } catch (RuntimeException e) {
+            Blabber.LOGGER.warn("(Blabber) Could not compile the dialogue bundle", e);
+            return;
+        }
+
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporaryFile))) {
+                index.readBytes(out, index.readableBytes());
+                for (PacketByteBuf compiled : compiledTemplates) {
+                    compiled.readBytes(out, compiled.readableBytes());
+                }
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Blabber.LOGGER.warn("(Blabber) Could not write the dialogue bundle to {}", file, e);
+        }
+    }
+
+    boolean contains(Identifier location) {
+        return this.entries.containsKey(location);
+    }
+
+    /**
+     * Decodes the template of a file straight from the mapped bundle. Safe to call from any thread.
+     *
+     * @throws DecoderException if the template cannot be decoded
+     */
+    DialogueTemplate decode(Identifier location) {
+        Entry entry = this.getEntry(location);
+        // Absolute slices leave the shared buffer's position alone
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.wrappedBuffer(this.data.slice(this.contentStart + entry.offset(), entry.length())));
+        return decompile(buf);
+    }
+
+    /**
+     * @return the loot predicates referenced by the template of a file, as found by {@link org.ladysnake.blabber.impl.common.model.DialogueOutline#findReferencedPredicates()}
+     */
+    Map<Identifier, String> getReferencedPredicates(Identifier location) {
+        return this.getEntry(location).referencedPredicates();
+    }
+
+    /**
+     * @return the outcome of validating the template of a file when the bundle was written
+     */
+    ValidationResult getValidation(Identifier location) {
+        return this.getEntry(location).validation();
+    }
+
+    private Entry getEntry(Identifier location) {
+        Entry entry = this.entries.get(location);
+        if (entry == null) throw new IllegalArgumentException("No dialogue file " + location + " in the dialogue bundle");
+        return entry;
+    }
+
+    private static PacketByteBuf compile(DialogueTemplate template) {
+        Long2ObjectMap<NbtCompound> payloads = new Long2ObjectLinkedOpenHashMap<>();
+        CompactPacketByteBuf encoded = new CompactPacketByteBuf(Unpooled.buffer()).keepPayloads(payloads).writeFormatVersion();
+        DialogueTemplate.writeToPacket(encoded, template);
+
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+        buf.writeVarInt(payloads.size());
+        for (Long2ObjectMap.Entry<NbtCompound> payload : payloads.long2ObjectEntrySet()) {
+            buf.writeLong(payload.getLongKey());
+            buf.writeNbt(payload.getValue());
+        }
+        buf.writeVarInt(encoded.readableBytes());
+        buf.writeBytes(encoded);
+
+        Map<String, DialogueState> serverStates = new LinkedHashMap<>();
+        for (Map.Entry<String, DialogueState> state : template.states().entrySet()) {
+            if (state.getValue().action().isPresent() || state.getValue().choices().stream().anyMatch(choice -> choice.condition().isPresent())) {
+                serverStates.put(state.getKey(), state.getValue());
+            }
+        }
+        buf.writeMap(serverStates, PacketByteBuf::writeString, (b, state) -> {
+            b.writeOptional(state.action(), (b1, action) -> writeJson(b1, InstancedDialogueAction.CODEC, action));
+            b.writeCollection(state.choices(), (b1, choice) -> {
+                DialogueChoiceCondition condition = choice.condition().orElse(null);
+                if (condition == null) {
+                    b1.writeVarInt(NO_CONDITION);
+                } else if (condition.predicate().isPresent()) {
+                    b1.writeVarInt(PREDICATE);
+                    b1.writeIdentifier(condition.predicate().get());
+                } else {
+                    b1.writeVarInt(NATIVE_CONDITION);
+                    writeJson(b1, InstancedDialogueCondition.CODEC, condition.condition().orElseThrow());
+                }
+            });
+        });
+        return buf;
+    }
+
+    private static DialogueTemplate decompile(PacketByteBuf buf) {
+        int payloadCount = buf.readVarInt();
+        Long2ObjectMap<NbtCompound> payloads = new Long2ObjectLinkedOpenHashMap<>(payloadCount);
+        for (int i = 0; i < payloadCount; i++) {
+            payloads.put(buf.readLong(), buf.readNbt());
+        }
+        int length = buf.readVarInt();
+        DialogueTemplate template = new DialogueTemplate(new CompactPacketByteBuf(buf.readSlice(length)).keepPayloads(payloads).readFormatVersion());
+
+        // The network encoding leaves out actions and conditions, which only the server needs
+        Map<String, DialogueState> states = new HashMap<>(template.states());
+        int serverStateCount = buf.readVarInt();
+        for (int i = 0; i < serverStateCount; i++) {
+            String key = buf.readString();
+            DialogueState state = states.get(key);
+            if (state == null) throw new DecoderException("Unknown state " + key + " in the dialogue bundle");
+            Optional<InstancedDialogueAction<?>> action = buf.readOptional(b -> readJson(b, InstancedDialogueAction.CODEC));
+            int choiceCount = buf.readVarInt();
+            if (choiceCount != state.choices().size()) throw new DecoderException("Mismatched choices for state " + key + " in the dialogue bundle");
+            List<DialogueChoice> choices = new ArrayList<>(choiceCount);
+            for (DialogueChoice choice : state.choices()) {
+                Optional<DialogueChoiceCondition> condition = switch (buf.readVarInt()) {
+                    case NO_CONDITION -> Optional.empty();
+                    case PREDICATE -> Optional.of(new DialogueChoiceCondition(Optional.of(buf.readIdentifier()), Optional.empty(), choice.condition().orElseThrow().whenUnavailable()));
+                    case NATIVE_CONDITION -> Optional.of(new DialogueChoiceCondition(Optional.empty(), Optional.of(readJson(buf, InstancedDialogueCondition.CODEC)), choice.condition().orElseThrow().whenUnavailable()));
+                    default -> throw new DecoderException("Unknown choice condition in the dialogue bundle");
+                };
+                choices.add(new DialogueChoice(choice.text(), choice.illustrations(), choice.next(), condition));
+            }
+            states.put(key, new DialogueState(state.text(), state.illustrations(), choices, action, state.type()));
+        }
+        return new DialogueTemplate(template.start(), template.unskippable(), states, template.illustrations(), template.layout(), template.conditionRefreshTicks());
+    }
+
+    private static <T> void writeJson(PacketByteBuf buf, Codec<T> codec, T value) {
+        buf.writeString(codec.encodeStart(JsonOps.INSTANCE, value).getOrThrow(false, error -> {
+            throw new EncoderException(error);
+        }).toString());
+    }
+
+    private static <T> T readJson(PacketByteBuf buf, Codec<T> codec) {
+        JsonElement json = JsonParser.parseString(buf.readString());
+        return codec.parse(JsonOps.INSTANCE, json).getOrThrow(false, error -> {
+            throw new DecoderException(error);
+        });
+    }
+
+    /**
+     * Only successful validations get bundled, so only their warnings need to be kept
+     */
+    private static void writeValidation(PacketByteBuf buf, ValidationResult validation) {
+        List<ValidationResult.Warning> warnings = validation instanceof ValidationResult.Warnings w ? w.warnings() : List.of();
+        buf.writeCollection(warnings, (b, warning) -> {
+            b.writeVarInt(warning instanceof ValidationResult.Warning.Unreachable ? UNREACHABLE : CONDITIONAL_SOFT_LOCK);
+            b.writeString(warning.state());
+        });
+    }
+
+    private static ValidationResult readValidation(PacketByteBuf buf) {
+        List<ValidationResult.Warning> warnings = buf.readList(b -> switch (b.readVarInt()) {
+            case UNREACHABLE -> new ValidationResult.Warning.Unreachable(b.readString());
+            case CONDITIONAL_SOFT_LOCK -> new ValidationResult.Warning.ConditionalSoftLock(b.readString());
+            default -> throw new DecoderException("Unknown validation warning in the dialogue bundle");
+        });
+        return warnings.isEmpty() ? ValidationResult.success() : new ValidationResult.Warnings(warnings);
+    }
+
+    /**
+     * @param location             the location of the dialogue file
+     * @param template             the template decoded from the file
+     * @param referencedPredicates the loot predicates referenced by the template
+     * @param validation           the outcome of validating the template, which must not be an error
+     */
+    record CompiledFile(Identifier location, DialogueTemplate template, Map<Identifier, String> referencedPredicates, ValidationResult validation) {
+    }
+
+    private record Entry(int offset, int length, Map<Identifier, String> referencedPredicates, ValidationResult validation) {
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.impl.common.model.DialogueOutline;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.validation.ValidationResult;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A dialogue registered in the {@link DialogueRegistry}, which keeps what its template can be decoded from along with the outcome of validating it,
+ * rather than the decoded template. That is either the raw content of its file, or its compiled template in the {@linkplain DialogueBundle dialogue bundle}.
+ *
+ * <p>Hot dialogues get their template pinned in the handle once decoded. Cold ones get decoded again when first needed,
+ * and then kept in the registry's bounded cache of cold templates.
+ */
+final class DialogueHandle {
+    private final Identifier id;
+    private final Supplier<DialogueTemplate> decoder;
+    private final Map<Identifier, String> referencedPredicates;
+    private final ValidationResult validation;
+    private final boolean hot;
+    private volatile @Nullable DialogueTemplate pinnedTemplate;
+    private volatile boolean failed;
+
+    /**
+     * @param decoder              decodes the template every time it gets called, throwing if it cannot
+     * @param referencedPredicates the loot predicates referenced by the template, as found by {@link DialogueOutline#findReferencedPredicates()}
+     * @param validation           the outcome of validating the template, which is not an error
+     * @param hot                  {@code true} if the template should stay decoded once it is, see {@link DialogueRegistry#isHot}
+     */
+    DialogueHandle(Identifier id, Supplier<DialogueTemplate> decoder, Map<Identifier, String> referencedPredicates, ValidationResult validation, boolean hot) {
+        this.id = id;
+        this.decoder = decoder;
+        this.referencedPredicates = referencedPredicates;
+        this.validation = validation;
+        this.hot = hot;
+    }
+
+    Identifier id() {
+        return this.id;
+    }
+
+    /**
+     * @return the ids of the loot predicates referenced by the template's choices, each with the key of the first state referencing it,
+     * so that missing ones can be reported without decoding cold templates
+     */
+    Map<Identifier, String> referencedPredicates() {
+        return this.referencedPredicates;
+    }
+
+    /**
+     * @return the outcome of validating the template, which is not an error
+     */
+    ValidationResult validation() {
+        return this.validation;
+    }
+
+    boolean isHot() {
+        return this.hot;
+    }
+
+    /**
+     * @return the template if the dialogue is hot and was already decoded, {@code null} otherwise
+     */
+    @Nullable DialogueTemplate getPinnedTemplate() {
+        return this.pinnedTemplate;
+    }
+
+    /**
+     * Decodes the template of a hot dialogue the first time, so that every caller gets the same instance
+     *
+     * @throws RuntimeException if the template cannot be decoded
+     */
+    DialogueTemplate pin() {
+        DialogueTemplate template = this.pinnedTemplate;
+        if (template != null) return template;
+        synchronized (this) {
+            if (this.pinnedTemplate == null) this.pinnedTemplate = this.decode();
+            return this.pinnedTemplate;
+        }
+    }
+
+    /**
+     * @return {@code true} if decoding the template failed before, in which case it will not be attempted again
+     */
+    boolean hasFailed() {
+        return this.failed;
+    }
+
+    /**
+     * Decodes the template again
+     *
+     * @throws RuntimeException if the template cannot be decoded
+     */
+    DialogueTemplate decode() {
+        try {
+            return this.decoder.get();
+        } catch (RuntimeException e) {
+            this.failed = true;
+            throw e;
+        }
+    }
+}
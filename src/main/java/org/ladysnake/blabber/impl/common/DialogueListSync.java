@@ -0,0 +1,169 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import com.demonwav.mcdev.annotations.CheckEnv;
+import com.demonwav.mcdev.annotations.Env;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import net.fabricmc.fabric.api.networking.v1.PacketSender;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.Blabber;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Keeps clients informed of the dialogues available on the server, for command suggestions.
+ *
+ * <p>Each datapack reload starts a new generation of the dialogue list. The full list of a generation is encoded once,
+ * and every player it gets sent to gets a view of the same bytes. After a reload, players who hold the previous generation
+ * only get the ids that were added or removed, also encoded once for everyone.
+ */
+public final class DialogueListSync {
+    public static final Identifier DIALOGUE_LIST = Blabber.id("dialogue_list");
+    private static final byte FULL_LIST = 0;
+    private static final byte LIST_DIFF = 1;
+
+    /**
+     * The generation of the dialogue list last sent to each player
+     */
+    private static final Object2IntMap<UUID> sentGenerations = new Object2IntOpenHashMap<>();
+    private static int generation;
+    private static Set<Identifier> previousIds = Set.of();
+    private static byte @Nullable [] fullList;
+    private static byte @Nullable [] diff;
+    private static int clientGeneration = -1;
+
+    static {
+        sentGenerations.defaultReturnValue(-1);
+    }
+
+    private DialogueListSync() {
+    }
+
+    public static void init() {
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> sentGenerations.removeInt(handler.getPlayer().getUuid()));
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> sentGenerations.clear());
+    }
+
+    /**
+     * Starts a new generation of the dialogue list, remembering the previous one to compute diffs against
+     */
+    static void onEntriesChanged(Set<Identifier> oldIds) {
+        generation++;
+        previousIds = oldIds;
+        fullList = null;
+        diff = null;
+    }
+
+    /**
+     * Sends the whole dialogue list to a player that just joined
+     */
+    static void sendFullList(ServerPlayerEntity player, PacketSender sender) {
+        sender.sendPacket(DIALOGUE_LIST, share(getFullList()));
+        sentGenerations.put(player.getUuid(), generation);
+    }
+
+    /**
+     * Updates the dialogue list of every player after a datapack reload
+     */
+    static void syncReload(List<ServerPlayerEntity> players) {
+        for (ServerPlayerEntity player : players) {
+            int sent = sentGenerations.getInt(player.getUuid());
+            if (sent == generation) continue;
+            // Players who somehow missed a generation get everything again
+            ServerPlayNetworking.send(player, DIALOGUE_LIST, share(sent == generation - 1 ? getDiff() : getFullList()));
+            sentGenerations.put(player.getUuid(), generation);
+        }
+    }
+
+    /**
+     * @return a buffer reading from the shared bytes, with its own indices
+     */
+    private static PacketByteBuf share(byte[] bytes) {
+        return new PacketByteBuf(Unpooled.wrappedBuffer(bytes));
+    }
+
+    private static byte[] getFullList() {
+        if (fullList == null) {
+            PacketByteBuf buf = PacketByteBufs.create();
+            buf.writeByte(FULL_LIST);
+            buf.writeVarInt(generation);
+            buf.writeCollection(DialogueRegistry.getIds(), PacketByteBuf::writeIdentifier);
+            fullList = toByteArray(buf);
+        }
+        return fullList;
+    }
+
+    private static byte[] getDiff() {
+        if (diff == null) {
+            Set<Identifier> currentIds = DialogueRegistry.getIds();
+            Set<Identifier> added = new HashSet<>(currentIds);
+            added.removeAll(previousIds);
+            Set<Identifier> removed = new HashSet<>(previousIds);
+            removed.removeAll(currentIds);
+            PacketByteBuf buf = PacketByteBufs.create();
+            buf.writeByte(LIST_DIFF);
+            buf.writeVarInt(generation);
+            buf.writeCollection(added, PacketByteBuf::writeIdentifier);
+            buf.writeCollection(removed, PacketByteBuf::writeIdentifier);
+            diff = toByteArray(buf);
+        }
+        return diff;
+    }
+
+    private static byte[] toByteArray(PacketByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        buf.release();
+        return bytes;
+    }
+
+    /**
+     * Applies a packet sent on {@link #DIALOGUE_LIST}
+     */
+    @CheckEnv(Env.CLIENT)
+    public static void handleDialogueList(PacketByteBuf buf) {
+        byte mode = buf.readByte();
+        int newGeneration = buf.readVarInt();
+        if (mode == FULL_LIST) {
+            DialogueRegistry.setClientIds(buf.readCollection(HashSet::new, PacketByteBuf::readIdentifier));
+        } else {
+            if (newGeneration != clientGeneration + 1) {
+                // Should not happen, the server keeps track of what we have
+                Blabber.LOGGER.warn("(Blabber) Received dialogue list diff for generation {}, but only had generation {}", newGeneration, clientGeneration);
+            }
+            Set<Identifier> ids = new HashSet<>(DialogueRegistry.getClientIds());
+            ids.addAll(buf.readCollection(HashSet::new, PacketByteBuf::readIdentifier));
+            ids.removeAll(buf.readCollection(HashSet::new, PacketByteBuf::readIdentifier));
+            DialogueRegistry.setClientIds(ids);
+        }
+        clientGeneration = newGeneration;
+    }
+}
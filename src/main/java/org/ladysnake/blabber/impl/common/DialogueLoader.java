@@ -17,47 +17,67 @@
  */
 package org.ladysnake.blabber.impl.common;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.mojang.serialization.DataResult;
 import com.mojang.serialization.JsonOps;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
-import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
-import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
 import net.fabricmc.fabric.api.resource.ResourceReloadListenerKeys;
 import net.fabricmc.fabric.api.resource.SimpleResourceReloadListener;
-import net.minecraft.network.PacketByteBuf;
+import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.resource.LifecycledResourceManager;
+import net.minecraft.resource.Resource;
 import net.minecraft.resource.ResourceManager;
 import net.minecraft.resource.ResourceType;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.Util;
 import net.minecraft.util.profiler.Profiler;
+import net.minecraft.util.registry.Registry;
+import org.jetbrains.annotations.Nullable;
 import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.impl.common.model.DialogueOutline;
 import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplateReader;
 import org.ladysnake.blabber.impl.common.validation.DialogueLoadingException;
 import org.ladysnake.blabber.impl.common.validation.DialogueValidator;
 import org.ladysnake.blabber.impl.common.validation.ValidationResult;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 
 
-public final class DialogueLoader implements SimpleResourceReloadListener<Map<Identifier, DialogueTemplate>>, ServerLifecycleEvents.EndDataPackReload {
+public final class DialogueLoader implements SimpleResourceReloadListener<DialogueLoader.LoadedDialogues>, ServerLifecycleEvents.EndDataPackReload {
     public static final String BLABBER_DIALOGUES_PATH = "blabber/dialogues";
     public static final Identifier ID = Blabber.id("dialogue_loader");
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
 
+    /**
+     * The files that made up the current dialogues, by location, for the next reload to reuse the unchanged ones
+     */
+    private volatile Map<Identifier, DialogueFile> loadedFiles = Map.of();
+
     private DialogueLoader() {
     }
 
@@ -65,39 +85,201 @@ public final class DialogueLoader implements SimpleResourceReloadListener<Map<Id
         DialogueLoader instance = new DialogueLoader();
         ResourceManagerHelper.get(ResourceType.SERVER_DATA).registerReloadListener(instance);
         ServerLifecycleEvents.END_DATA_PACK_RELOAD.register(instance);
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> instance.loadedFiles = Map.of());
+        // Predicates only become available through the server once the whole reload is done
+        ServerLifecycleEvents.SERVER_STARTING.register(server -> DialogueRegistry.resolveConditionTables(server.getPredicateManager()));
     }
 
+    /**
+     * Each file gets read and hashed, then parsed and validated, in its own tasks on the reload executor.
+     * Results are merged in the order of the files' locations, so that neither the outcome nor the error report depend on scheduling.
+     *
+     * <p>Files that come from the same pack with the same content as in the previous load are not decoded again,
+     * their handle is reused as is. Caches keyed by template identity, like the {@link DialogueRegistry}'s, thus stay valid for them.
+     *
+     * <p>Templates do not get decoded here, only their {@linkplain DialogueOutline outline} gets read and validated.
+     * They get decoded when first used, or right after the reload for {@linkplain DialogueRegistry#isHot hot} dialogues.
+     * If the {@linkplain DialogueBundle dialogue bundle} is enabled and was written from the very same files, their JSON is not even read:
+     * templates get decoded from their compiled form in the bundle instead. Otherwise, a new bundle gets compiled in the background.
+     */
     @Override
-    public CompletableFuture<Map<Identifier, DialogueTemplate>> load(ResourceManager manager, Profiler profiler, Executor executor) {
+    public CompletableFuture<LoadedDialogues> load(ResourceManager manager, Profiler profiler, Executor executor) {
+        Map<Identifier, DialogueFile> previousFiles = this.loadedFiles;
         return CompletableFuture.supplyAsync(() -> {
-            Map<Identifier, DialogueTemplate> data = new HashMap<>();
-            manager.findResources(BLABBER_DIALOGUES_PATH, (res) -> res.getPath().endsWith(".json")).forEach((location, resource) -> {
-                try (Reader in = new InputStreamReader(resource.getInputStream())) {
-                    JsonObject jsonObject = GSON.fromJson(in, JsonObject.class);
-                    Identifier id = new Identifier(location.getNamespace(), location.getPath().substring(BLABBER_DIALOGUES_PATH.length() + 1, location.getPath().length() - 5));
-                    DialogueTemplate dialogue = DialogueTemplate.CODEC.parse(JsonOps.INSTANCE, jsonObject).getOrThrow(false, message -> Blabber.LOGGER.error("(Blabber) Could not parse dialogue file from {}: {}", location, message));
-                    ValidationResult result = DialogueValidator.validateStructure(dialogue);
-                    // TODO GIVE ME PATTERN MATCHING IN SWITCHES
-                    if (result instanceof ValidationResult.Error error) {
-                        Blabber.LOGGER.error("(Blabber) Could not validate dialogue {}: {}", id, error.message());
-                        throw new DialogueLoadingException("Could not validate dialogue file from " + location);
-                    } else if (result instanceof ValidationResult.Warnings warnings) {
-                        Blabber.LOGGER.warn("(Blabber) Dialogue {} had warnings: {}", id, warnings.message());
-                    }
-
-                    data.put(id, dialogue);
-                } catch (IOException | JsonParseException e) {
-                    Blabber.LOGGER.error("(Blabber) Could not read dialogue file from {}", location, e);
-                    throw new DialogueLoadingException("Could not read dialogue file from " + location, e);
-                }
-            });
-            return data;
-        }, executor);
+            List<Map.Entry<Identifier, Resource>> resources = new ArrayList<>(manager.findResources(BLABBER_DIALOGUES_PATH, (res) -> res.getPath().endsWith(".json")).entrySet());
+            resources.sort(Map.Entry.comparingByKey());
+            return resources;
+        }, executor).thenCompose(resources -> {
+            List<CompletableFuture<DialogueSource>> reads = new ArrayList<>(resources.size());
+            for (Map.Entry<Identifier, Resource> entry : resources) {
+                reads.add(CompletableFuture.supplyAsync(() -> readDialogue(entry.getKey(), entry.getValue()), executor));
+            }
+            return CompletableFuture.allOf(reads.toArray(CompletableFuture[]::new)).thenApply(v -> reads.stream().map(CompletableFuture::join).toList());
+        }).thenCompose(sources -> loadDialogues(sources, previousFiles, executor));
+    }
+
+    private static DialogueSource readDialogue(Identifier location, Resource resource) {
+        Identifier id = new Identifier(location.getNamespace(), location.getPath().substring(BLABBER_DIALOGUES_PATH.length() + 1, location.getPath().length() - 5));
+        try (InputStream in = resource.getInputStream()) {
+            byte[] content = in.readAllBytes();
+            return new DialogueSource(location, id, resource.getResourcePackName(), Hashing.murmur3_128().hashBytes(content), content);
+        } catch (IOException e) {
+            Blabber.LOGGER.error("(Blabber) Could not read dialogue file from {}", location, e);
+            return new DialogueSource(location, id, null, null, null);
+        }
+    }
+
+    private static CompletableFuture<LoadedDialogues> loadDialogues(List<DialogueSource> sources, Map<Identifier, DialogueFile> previousFiles, Executor executor) {
+        boolean needsDecoding = sources.stream().anyMatch(source -> !source.canReuse(previousFiles.get(source.location())));
+        HashCode fingerprint = DialogueBundle.isEnabled() ? fingerprint(sources) : null;
+        DialogueBundle bundle = fingerprint != null && needsDecoding ? DialogueBundle.open(DialogueBundle.getBundleFile(), fingerprint) : null;
+
+        List<CompletableFuture<DialogueFile>> tasks = new ArrayList<>(sources.size());
+        for (DialogueSource source : sources) {
+            DialogueFile previous = previousFiles.get(source.location());
+            if (source.content() == null) {
+                tasks.add(CompletableFuture.completedFuture(DialogueFile.failed(source.location(), source.id())));
+            } else if (source.canReuse(previous)) {
+                tasks.add(CompletableFuture.completedFuture(new DialogueFile(source.location(), source.id(), source.pack(), source.hash(), previous.handle(), DialogueFile.Origin.REUSED)));
+            } else if (bundle != null && bundle.contains(source.location())) {
+                Identifier location = source.location();
+                DialogueHandle handle = new DialogueHandle(source.id(), () -> bundle.decode(location), bundle.getReferencedPredicates(location), bundle.getValidation(location), DialogueRegistry.isHot(source.id()));
+                tasks.add(CompletableFuture.completedFuture(new DialogueFile(source.location(), source.id(), source.pack(), source.hash(), handle, DialogueFile.Origin.BUNDLED)));
+            } else {
+                tasks.add(CompletableFuture.supplyAsync(() -> validateDialogue(source), executor));
+            }
+        }
+        return CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).thenApply(v -> {
+            LoadedDialogues loaded = merge(tasks);
+            if (fingerprint != null && needsDecoding && bundle == null) {
+                // Everything got validated, later startups with the same files can skip it
+                CompletableFuture.runAsync(() -> writeBundle(fingerprint, loaded), Util.getMainWorkerExecutor());
+            }
+            return loaded;
+        });
+    }
+
+    /**
+     * Decodes every template to compile it into the bundle.
+     * Hot templates get pinned on the way, sparing their warm-up a second decoding.
+     */
+    private static void writeBundle(HashCode fingerprint, LoadedDialogues loaded) {
+        List<DialogueFile> files = new ArrayList<>(loaded.files().values());
+        files.sort(Comparator.comparing(DialogueFile::location));
+        List<DialogueBundle.CompiledFile> compiledFiles = new ArrayList<>(files.size());
+        for (DialogueFile file : files) {
+            DialogueHandle handle = Objects.requireNonNull(file.handle());
+            DialogueTemplate template;
+            try {
+                template = handle.isHot() ? handle.pin() : handle.decode();
+            } catch (RuntimeException e) {
+                Blabber.LOGGER.error("(Blabber) Could not decode dialogue {}, not writing the dialogue bundle", file.location(), e);
+                return;
+            }
+            compiledFiles.add(new DialogueBundle.CompiledFile(file.location(), template, handle.referencedPredicates(), handle.validation()));
+        }
+        DialogueBundle.write(DialogueBundle.getBundleFile(), fingerprint, compiledFiles);
+    }
+
+    /**
+     * @return a hash of every dialogue file's location, pack and content, along with the version of Blabber that validated them
+     * and the registered illustration and layout types, which compiled templates refer to by raw id
+     */
+    private static HashCode fingerprint(List<DialogueSource> sources) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(FabricLoader.getInstance().getModContainer(Blabber.MOD_ID).map(mod -> mod.getMetadata().getVersion().getFriendlyString()).orElse(""), StandardCharsets.UTF_8);
+        putRawIds(hasher, BlabberRegistrar.ILLUSTRATION_REGISTRY);
+        putRawIds(hasher, BlabberRegistrar.LAYOUT_REGISTRY);
+        hasher.putInt(sources.size());
+        for (DialogueSource source : sources) {
+            hasher.putString(source.location().toString(), StandardCharsets.UTF_8);
+            hasher.putString(String.valueOf(source.pack()), StandardCharsets.UTF_8);
+            if (source.hash() != null) hasher.putBytes(source.hash().asBytes());
+        }
+        return hasher.hash();
+    }
+
+    private static <T> void putRawIds(Hasher hasher, Registry<T> registry) {
+        for (T entry : registry) {
+            hasher.putInt(registry.getRawId(entry));
+            hasher.putString(String.valueOf(registry.getId(entry)), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Validates the outline of a dialogue file, which is all that is needed to register it.
+     * Files that {@link DialogueTemplateReader} cannot outline get decoded whole, so that the codec can tell what is wrong with them.
+     */
+    private static DialogueFile validateDialogue(DialogueSource source) {
+        Identifier location = source.location();
+        Identifier id = source.id();
+        try {
+            byte[] content = Objects.requireNonNull(source.content());
+            DialogueOutline outline = DialogueTemplateReader.readOutline(content).orElseGet(() -> DialogueOutline.of(decodeWithCodec(content)));
+            ValidationResult result = DialogueValidator.validateStructure(outline);
+            // TODO GIVE ME PATTERN MATCHING IN SWITCHES
+            if (result instanceof ValidationResult.Error error) {
+                Blabber.LOGGER.error("(Blabber) Could not validate dialogue {}: {}", id, error.message());
+                return DialogueFile.failed(location, id);
+            } else if (result instanceof ValidationResult.Warnings warnings) {
+                Blabber.LOGGER.warn("(Blabber) Dialogue {} had warnings: {}", id, warnings.message());
+            }
+            DialogueHandle handle = new DialogueHandle(id, () -> decode(content), outline.findReferencedPredicates(), result, DialogueRegistry.isHot(id));
+            return new DialogueFile(location, id, source.pack(), source.hash(), handle, DialogueFile.Origin.VALIDATED);
+        } catch (JsonParseException e) {
+            Blabber.LOGGER.error("(Blabber) Could not read dialogue file from {}", location, e);
+            return DialogueFile.failed(location, id);
+        } catch (RuntimeException e) {
+            Blabber.LOGGER.error("(Blabber) Could not load dialogue {}", location, e);
+            return DialogueFile.failed(location, id);
+        }
+    }
+
+    static DialogueTemplate decode(byte[] content) {
+        return DialogueTemplateReader.read(content).orElseGet(() -> decodeWithCodec(content));
+    }
+
+    /**
+     * Decodes files that {@link DialogueTemplateReader} gave up on
+     *
+     * @throws JsonParseException with the codec's description of what is wrong with the file
+     */
+    private static DialogueTemplate decodeWithCodec(byte[] content) {
+        JsonObject jsonObject = GSON.fromJson(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8), JsonObject.class);
+        DataResult<DialogueTemplate> result = DialogueTemplate.CODEC.parse(JsonOps.INSTANCE, jsonObject);
+        return result.result().orElseThrow(() -> new JsonParseException(result.error().map(DataResult.PartialResult::message).orElse("Unknown error")));
+    }
+
+    private static LoadedDialogues merge(List<CompletableFuture<DialogueFile>> tasks) {
+        Map<Identifier, DialogueHandle> data = new HashMap<>(tasks.size());
+        Map<Identifier, DialogueFile> files = new HashMap<>(tasks.size());
+        List<Identifier> failures = new ArrayList<>();
+        int reused = 0;
+        int bundled = 0;
+        for (CompletableFuture<DialogueFile> task : tasks) {
+            DialogueFile file = task.join();
+            if (file.handle() == null) {
+                failures.add(file.location());
+            } else {
+                data.put(file.id(), file.handle());
+                files.put(file.location(), file);
+                if (file.origin() == DialogueFile.Origin.REUSED) reused++;
+                else if (file.origin() == DialogueFile.Origin.BUNDLED) bundled++;
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new DialogueLoadingException("Could not load " + failures.size() + " dialogue file(s): " + failures.stream().map(Identifier::toString).collect(Collectors.joining(", ")));
+        }
+        return new LoadedDialogues(data, files, reused, bundled);
     }
 
     @Override
-    public CompletableFuture<Void> apply(Map<Identifier, DialogueTemplate> data, ResourceManager manager, Profiler profiler, Executor executor) {
-        return CompletableFuture.runAsync(() -> DialogueRegistry.setEntries(data), executor);
+    public CompletableFuture<Void> apply(LoadedDialogues data, ResourceManager manager, Profiler profiler, Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            this.loadedFiles = data.files();
+            DialogueRegistry.setEntries(data.dialogues());
+            Blabber.LOGGER.info("(Blabber) Loaded {} dialogues, reused {} unchanged ones, {} from the dialogue bundle", data.dialogues().size(), data.reused(), data.bundled());
+        }, executor);
     }
 
     @Override
@@ -110,14 +292,63 @@ public final class DialogueLoader implements SimpleResourceReloadListener<Map<Id
         return Set.of(ResourceReloadListenerKeys.LOOT_TABLES);  // for dialogue choice predicates
     }
 
+    /**
+     * A dialogue file as read from its pack
+     *
+     * @param pack    the name of the pack the file came from
+     * @param hash    a hash of the file's content
+     * @param content the file's content, or {@code null} if it could not be read
+     */
+    private record DialogueSource(Identifier location, Identifier id, @Nullable String pack, @Nullable HashCode hash, @Nullable byte[] content) {
+        boolean canReuse(@Nullable DialogueFile previous) {
+            return previous != null && previous.handle() != null && this.pack != null && this.pack.equals(previous.pack()) && this.hash != null && this.hash.equals(previous.hash());
+        }
+    }
+
+    /**
+     * The outcome of loading a single dialogue file
+     *
+     * @param pack   the name of the pack the file came from
+     * @param hash   a hash of the file's content
+     * @param handle the loaded dialogue, or {@code null} if the file could not be loaded
+     * @param origin where the template comes from
+     */
+    private record DialogueFile(Identifier location, Identifier id, @Nullable String pack, @Nullable HashCode hash, @Nullable DialogueHandle handle, Origin origin) {
+        static DialogueFile failed(Identifier location, Identifier id) {
+            return new DialogueFile(location, id, null, null, null, Origin.VALIDATED);
+        }
+
+        enum Origin {
+            /**
+             * Validated from the file's content
+             */
+            VALIDATED,
+            /**
+             * Carried over from the previous load
+             */
+            REUSED,
+            /**
+             * Compiled in the dialogue bundle, without validating it again
+             */
+            BUNDLED
+        }
+    }
+
+    /**
+     * @param dialogues the loaded dialogues, by id
+     * @param files     the files they were loaded from, by location
+     * @param reused    how many templates were carried over from the previous load
+     * @param bundled   how many templates are to be decoded from the dialogue bundle
+     */
+    record LoadedDialogues(Map<Identifier, DialogueHandle> dialogues, Map<Identifier, DialogueFile> files, int reused, int bundled) {
+    }
+
     @Override
     public void endDataPackReload(MinecraftServer server, LifecycledResourceManager resourceManager, boolean success) {
         if (success) {
-            Set<Identifier> dialogueIds = DialogueRegistry.getIds();
+            DialogueRegistry.resolveConditionTables(server.getPredicateManager());
+            DialogueListSync.syncReload(server.getPlayerManager().getPlayerList());
             for (ServerPlayerEntity player : server.getPlayerManager().getPlayerList()) {
-                PacketByteBuf packetByteBuf = PacketByteBufs.create();
-                packetByteBuf.writeCollection(dialogueIds, PacketByteBuf::writeIdentifier);
-                ServerPlayNetworking.send(player, Blabber.id("dialogue_list"), packetByteBuf);
                 PlayerDialogueTracker.get(player).updateDialogue();
             }
         }
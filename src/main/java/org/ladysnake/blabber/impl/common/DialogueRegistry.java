@@ -17,13 +17,30 @@
  */
 package org.ladysnake.blabber.impl.common;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import net.minecraft.loot.condition.LootConditionManager;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.Util;
 import org.jetbrains.annotations.ApiStatus;
+import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.impl.common.machine.ChoiceConditionTable;
 import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.validation.ValidationResult;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 /*
  This could have been a dynamic registry, and it was at some point. However, since
@@ -36,8 +53,30 @@ import java.util.Set;
  */
 
 public final class DialogueRegistry {
+    /**
+     * Dialogues which templates get decoded in the background as soon as they are loaded, and then stay decoded for as long as they are registered,
+     * set with {@code -Dblabber.hotDialogues=namespace:path,...}, or {@code *} for all of them.
+     * Every other dialogue is cold, and only gets decoded when used, which saves memory and startup time
+     * but costs a decoding and an encoding on the server thread whenever it is not in the cache of cold templates.
+     */
+    private static final String HOT_DIALOGUES_PROPERTY = System.getProperty("blabber.hotDialogues", "");
+    private static final Set<Identifier> HOT_DIALOGUES = parseHotDialogues(HOT_DIALOGUES_PROPERTY);
+    private static final boolean ALL_DIALOGUES_HOT = HOT_DIALOGUES_PROPERTY.trim().equals("*");
+    /**
+     * Templates of cold dialogues that were recently used, which the garbage collector may still reclaim when memory runs low
+     */
+    private static final Cache<DialogueHandle, DialogueTemplate> coldTemplates = CacheBuilder.newBuilder()
+            .maximumSize(Integer.getInteger("blabber.coldDialogueCacheSize", 64))
+            .softValues()
+            .build();
+
     private static Set<Identifier> clientDialogueIds = Set.of();
-    private static Map<Identifier, DialogueTemplate> entries = Map.of();
+    private static Map<Identifier, DialogueHandle> entries = Map.of();
+    // Weakly keyed by identity, hashing whole template records would cost more than resolving the table again,
+    // and cold templates must not be kept alive by their caches
+    private static Map<DialogueTemplate, ChoiceConditionTable> conditionTables = createTemplateMap();
+    private static Map<DialogueTemplate, CompletableFuture<DialogueTemplateSync.EncodedTemplate>> encodedTemplates = createTemplateMap();
+    private static Map<DialogueTemplate, Set<String>> personalizedStates = createTemplateMap();
 
     public static Set<Identifier> getClientIds() {
         return clientDialogueIds;
@@ -47,16 +86,156 @@ public final class DialogueRegistry {
         return entries.keySet();
     }
 
+    /**
+     * @return the template of the dialogue, which gets decoded if it is hot and was not warmed up yet, or if it is cold and was not used recently
+     */
     public static Optional<DialogueTemplate> getOrEmpty(Identifier id) {
-        return Optional.ofNullable(entries.get(id));
+        DialogueHandle handle = entries.get(id);
+        if (handle == null || handle.hasFailed()) return Optional.empty();
+        try {
+            return Optional.of(handle.isHot() ? handle.pin() : coldTemplates.get(handle, handle::decode));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Blabber.LOGGER.error("(Blabber) Could not decode dialogue {}", id, e.getCause());
+            return Optional.empty();
+        } catch (RuntimeException e) {
+            Blabber.LOGGER.error("(Blabber) Could not decode dialogue {}", id, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return {@code true} if the dialogue's template should be decoded as soon as it is loaded, and kept around
+     */
+    static boolean isHot(Identifier id) {
+        return ALL_DIALOGUES_HOT || HOT_DIALOGUES.contains(id);
     }
 
     public static boolean containsId(Identifier id) {
         return getIds().contains(id);
     }
 
-    static void setEntries(Map<Identifier, DialogueTemplate> newEntries) {
+    /**
+     * @param template a template obtained from this registry, <em>before</em> any text parsing
+     * @return the predicates referenced by the template's choices
+     */
+    public static ChoiceConditionTable getConditionTable(DialogueTemplate template, LootConditionManager predicates) {
+        // Missing predicates were already reported by resolveConditionTables, no need to do it again whenever a cold template gets decoded
+        return conditionTables.computeIfAbsent(template, t -> ChoiceConditionTable.resolve(t, predicates::get, error -> {}));
+    }
+
+    /**
+     * @param template a template obtained from this registry, <em>before</em> any text parsing
+     * @return the template encoded for networking, shared by every player it gets sent to
+     */
+    public static DialogueTemplateSync.EncodedTemplate getEncodedTemplate(DialogueTemplate template) {
+        CompletableFuture<DialogueTemplateSync.EncodedTemplate> encoding = encodedTemplates.computeIfAbsent(template, t -> new CompletableFuture<>());
+        if (encoding.isDone() && !encoding.isCompletedExceptionally()) {
+            return encoding.join();
+        }
+        // Needed before the worker got to it, encoding it right away beats waiting in line
+        DialogueTemplateSync.EncodedTemplate encoded = DialogueTemplateSync.EncodedTemplate.encode(template);
+        encoding.complete(encoded);
+        return encoded;
+    }
+
+    /**
+     * @param template a template obtained from this registry, <em>before</em> any text parsing
+     * @return the states which texts must be parsed for each player, all others being the same for everyone
+     */
+    public static Set<String> getPersonalizedStates(DialogueTemplate template) {
+        return personalizedStates.computeIfAbsent(template, DialogueTemplate::findPersonalizedStates);
+    }
+
+    /**
+     * Templates that were already registered before keep what was computed for them.
+     * Hot templates get decoded and have everything computed on worker threads, cold ones when they are first used.
+     */
+    static void setEntries(Map<Identifier, DialogueHandle> newEntries) {
+        Map<DialogueTemplate, CompletableFuture<DialogueTemplateSync.EncodedTemplate>> newEncodedTemplates = createTemplateMap();
+        Map<DialogueTemplate, Set<String>> newPersonalizedStates = createTemplateMap();
+        List<DialogueHandle> undecodedHotHandles = new ArrayList<>();
+        Set<DialogueHandle> newHandles = Collections.newSetFromMap(new IdentityHashMap<>(newEntries.size()));
+        for (DialogueHandle handle : newEntries.values()) {
+            newHandles.add(handle);
+            if (!handle.isHot()) continue;
+            DialogueTemplate template = handle.getPinnedTemplate();
+            if (template == null) {
+                undecodedHotHandles.add(handle);
+                continue;
+            }
+            CompletableFuture<DialogueTemplateSync.EncodedTemplate> encoding = encodedTemplates.get(template);
+            if (encoding != null) newEncodedTemplates.put(template, encoding);
+            Set<String> states = personalizedStates.get(template);
+            if (states != null) newPersonalizedStates.put(template, states);
+        }
+        Set<Identifier> oldIds = entries.keySet();
         entries = newEntries;
+        DialogueListSync.onEntriesChanged(oldIds);
+        // Unchanged dialogues keep their handle across reloads, and thus their cached template
+        coldTemplates.asMap().keySet().retainAll(newHandles);
+        conditionTables = createTemplateMap();
+        encodedTemplates = newEncodedTemplates;
+        personalizedStates = newPersonalizedStates;
+        for (DialogueHandle handle : undecodedHotHandles) {
+            CompletableFuture.runAsync(() -> warmUp(handle), Util.getMainWorkerExecutor());
+        }
+    }
+
+    /**
+     * Decodes a hot template and computes what it needs ahead of time, so that opening a dialogue screen only has to copy the resulting bytes
+     */
+    private static void warmUp(DialogueHandle handle) {
+        try {
+            DialogueTemplate template = handle.pin();
+            getPersonalizedStates(template);
+            getEncodedTemplate(template);
+        } catch (RuntimeException e) {
+            Blabber.LOGGER.error("(Blabber) Could not decode dialogue {}", handle.id(), e);
+        }
+    }
+
+    /**
+     * Binds every choice condition of the decoded templates to its predicate, and reports missing predicates for every dialogue.
+     * Templates that are not decoded get checked through their {@linkplain DialogueHandle#referencedPredicates() referenced predicates},
+     * and get their table resolved when first used.
+     */
+    static void resolveConditionTables(LootConditionManager predicates) {
+        Map<DialogueTemplate, ChoiceConditionTable> tables = createTemplateMap();
+        for (DialogueHandle handle : entries.values()) {
+            Identifier id = handle.id();
+            Consumer<ValidationResult.Error> errorReporter = error -> Blabber.LOGGER.error("(Blabber) Could not validate dialogue {}: {}", id, error.message());
+            DialogueTemplate template = handle.getPinnedTemplate();
+            if (template == null) template = coldTemplates.getIfPresent(handle);
+            if (template != null) {
+                tables.put(template, ChoiceConditionTable.resolve(template, predicates::get, errorReporter));
+            } else {
+                for (Map.Entry<Identifier, String> predicate : handle.referencedPredicates().entrySet()) {
+                    if (predicates.get(predicate.getKey()) == null) {
+                        errorReporter.accept(new ValidationResult.Error.NonexistentPredicate(predicate.getValue(), predicate.getKey()));
+                    }
+                }
+            }
+        }
+        conditionTables = tables;
+    }
+
+    private static <V> Map<DialogueTemplate, V> createTemplateMap() {
+        return new MapMaker().weakKeys().makeMap();
+    }
+
+    private static Set<Identifier> parseHotDialogues(String property) {
+        Set<Identifier> ids = new HashSet<>();
+        for (String entry : property.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.isEmpty() || trimmed.equals("*")) continue;
+            Identifier id = Identifier.tryParse(trimmed);
+            if (id == null) {
+                Blabber.LOGGER.warn("(Blabber) Ignoring invalid hot dialogue id {}", trimmed);
+            } else {
+                ids.add(id);
+            }
+        }
+        return Set.copyOf(ids);
     }
 
     @ApiStatus.Internal // highly internal
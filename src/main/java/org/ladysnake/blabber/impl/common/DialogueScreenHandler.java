@@ -20,6 +20,7 @@ package org.ladysnake.blabber.impl.common;
 import com.demonwav.mcdev.annotations.CheckEnv;
 import com.demonwav.mcdev.annotations.Env;
 import com.google.common.collect.ImmutableList;
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.item.ItemStack;
@@ -38,10 +39,11 @@ import org.ladysnake.blabber.impl.common.model.ChoiceResult;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 public class DialogueScreenHandler extends ScreenHandler {
-    private final DialogueStateMachine dialogue;
-    private final @Nullable Entity interlocutor;
+    private DialogueStateMachine dialogue;
+    private @Nullable Entity interlocutor;
 
     public DialogueScreenHandler(int syncId, DialogueStateMachine dialogue, @Nullable Entity interlocutor) {
         this(BlabberRegistrar.DIALOGUE_SCREEN_HANDLER, syncId, dialogue, interlocutor);
@@ -53,6 +55,51 @@ public class DialogueScreenHandler extends ScreenHandler {
         this.interlocutor = interlocutor;
     }
 
+    /**
+     * Reads the data written by {@link DialogueScreenHandlerFactory#writeScreenOpeningData}
+     */
+    public static DialogueScreenHandler fromOpeningData(int syncId, PlayerEntity player, PacketByteBuf buf) {
+        DialogueStateMachine dialogue = new DialogueStateMachine(buf);
+        return new DialogueScreenHandler(syncId, dialogue, readInterlocutorAndAvailability(player, buf, dialogue));
+    }
+
+    private static @Nullable Entity readInterlocutorAndAvailability(PlayerEntity player, PacketByteBuf buf, DialogueStateMachine dialogue) {
+        Optional<Entity> interlocutor = buf.readOptional(PacketByteBuf::readVarInt).map(player.getWorld()::getEntityById);
+        if (!dialogue.isAwaitingTemplate()) {
+            dialogue.applyFullAvailabilityUpdate(buf);
+        }
+        return interlocutor.orElse(null);
+    }
+
+    /**
+     * Swaps in the dialogue a session moved on to, without closing this handler's screen
+     *
+     * @see #canReplaceDialogue(DialogueStateMachine)
+     */
+    public void replaceDialogue(DialogueStateMachine dialogue, @Nullable Entity interlocutor) {
+        this.dialogue = dialogue;
+        this.interlocutor = interlocutor;
+    }
+
+    /**
+     * Replaces this handler's dialogue with one read from the data written by {@link DialogueScreenHandlerFactory#writeScreenOpeningData}
+     */
+    @CheckEnv(Env.CLIENT)
+    public void replaceDialogue(PlayerEntity player, PacketByteBuf buf) {
+        DialogueStateMachine dialogue = new DialogueStateMachine(buf);
+        this.replaceDialogue(dialogue, readInterlocutorAndAvailability(player, buf, dialogue));
+    }
+
+    /**
+     * The client keeps its screen open after a choice only if it leads to a regular state,
+     * and the screen can only display dialogues of its own layout.
+     *
+     * @return {@code true} if the given dialogue can be swapped into this handler's screen
+     */
+    public boolean canReplaceDialogue(DialogueStateMachine next) {
+        return this.dialogue.getCurrentStateType() == ChoiceResult.DEFAULT && this.dialogue.getLayout().type() == next.getLayout().type();
+    }
+
     @SuppressWarnings("unused") // may be useful for custom layouts one day
     public @Nullable Entity getInterlocutor() {
         return interlocutor;
@@ -87,8 +134,29 @@ public class DialogueScreenHandler extends ScreenHandler {
         return this.dialogue.getCurrentStateKey();
     }
 
-    public void setCurrentState(String key) {
-        this.dialogue.selectState(key);
+    public int getCurrentStateIndex() {
+        return this.dialogue.getCurrentStateIndex();
+    }
+
+    public boolean isAwaitingTemplate() {
+        return this.dialogue.isAwaitingTemplate();
+    }
+
+    public void setCurrentState(int stateIndex) {
+        if (!this.isAwaitingTemplate()) {
+            this.dialogue.selectState(this.dialogue.getStateKey(stateIndex));
+        }
+    }
+
+    /**
+     * Adds newly streamed states to this screen's dialogue, if they belong to it
+     *
+     * @return {@code true} if the availability of choices should be resynchronized to account for the new states
+     */
+    @CheckEnv(Env.CLIENT)
+    public boolean loadStates(DialogueTemplateSync.LoadedStates loaded) {
+        if (!this.dialogue.getId().equals(loaded.dialogueId()) || !this.dialogue.isLoadingStates()) return false;
+        return this.dialogue.loadStates(loaded.states(), loaded.illustrations());
     }
 
     @Override
@@ -101,8 +169,40 @@ public class DialogueScreenHandler extends ScreenHandler {
         return true;
     }
 
-    public void handleAvailabilityUpdate(PacketByteBuf packet) {
-        this.dialogue.applyAvailabilityUpdate(packet);
+    /**
+     * @return a packet containing every availability change since the last one, to be sent on {@link BlabberRegistrar#CHOICE_AVAILABILITY}
+     */
+    public PacketByteBuf createAvailabilityDeltaPacket() {
+        PacketByteBuf buf = PacketByteBufs.create();
+        buf.writeVarInt(this.syncId);
+        buf.writeBoolean(false);
+        this.dialogue.writeAvailabilityDelta(buf);
+        return buf;
+    }
+
+    /**
+     * @return a packet resetting the availability of every choice, to be sent on {@link BlabberRegistrar#CHOICE_AVAILABILITY}
+     */
+    public PacketByteBuf createFullAvailabilityUpdatePacket() {
+        PacketByteBuf buf = PacketByteBufs.create();
+        buf.writeVarInt(this.syncId);
+        buf.writeBoolean(true);
+        this.dialogue.writeFullAvailabilityUpdate(buf);
+        return buf;
+    }
+
+    /**
+     * @return {@code false} if an update went missing and the server should be asked for a full resync
+     */
+    public boolean handleAvailabilityUpdate(PacketByteBuf packet) {
+        if (packet.readVarInt() != this.syncId || this.isAwaitingTemplate()) {
+            return true;    // left over from a previous screen, or for a screen about to be reopened with up-to-date opening data
+        }
+        if (packet.readBoolean()) {
+            this.dialogue.applyFullAvailabilityUpdate(packet);
+            return true;
+        }
+        return this.dialogue.applyAvailabilityDelta(packet);
     }
 
     @CheckEnv(Env.CLIENT)
@@ -113,10 +213,16 @@ public class DialogueScreenHandler extends ScreenHandler {
 
     public boolean makeChoice(ServerPlayerEntity player, int choice) {
         try {  // Can't throw here, could cause trouble with a bad packet
-            ChoiceResult result = this.dialogue.choose(choice, action -> action.handle(player, this.interlocutor));
-            // The action itself can close the dialogue or switch to a different one, so we need to check this one is still open
-            if (result == ChoiceResult.END_DIALOGUE && player.currentScreenHandler == this) {
+            DialogueStateMachine dialogue = this.dialogue;
+            ChoiceResult result = dialogue.choose(choice, action -> action.handle(player, this.interlocutor));
+            // The action itself can close the dialogue or switch to a different one, possibly in this same screen,
+            // so we need to check this one is still open
+            boolean stillOpen = player.currentScreenHandler == this && this.dialogue == dialogue;
+            if (result == ChoiceResult.END_DIALOGUE && stillOpen) {
                 PlayerDialogueTracker.get(player).endDialogue();
+            } else if (stillOpen) {
+                // Don't make the player wait for the next scheduled refresh to see what they can pick in the new state
+                PlayerDialogueTracker.get(player).refreshConditionsNow();
             }
 
             return true;
@@ -17,7 +17,6 @@
  */
 package org.ladysnake.blabber.impl.common;
 
-import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
 import net.fabricmc.fabric.api.screenhandler.v1.ExtendedScreenHandlerFactory;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.PlayerEntity;
@@ -26,31 +25,42 @@ import net.minecraft.network.PacketByteBuf;
 import net.minecraft.screen.ScreenHandler;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.text.Text;
+import net.minecraft.util.profiler.Profiler;
 import org.jetbrains.annotations.Nullable;
 import org.ladysnake.blabber.impl.common.machine.DialogueStateMachine;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
 
 import java.util.Optional;
 
 public class DialogueScreenHandlerFactory implements ExtendedScreenHandlerFactory {
     private final DialogueStateMachine dialogue;
+    private final DialogueTemplate template;
+    private final byte[] overrides;
     private final Text displayName;
     private final @Nullable Entity interlocutor;
 
-    public DialogueScreenHandlerFactory(DialogueStateMachine dialogue, Text displayName, @Nullable Entity interlocutor) {
+    /**
+     * @param template  the dialogue's template before text parsing, as registered in the {@link DialogueRegistry}
+     * @param overrides the parts of the template that got parsed for the player, as encoded by {@link DialogueTemplateSync#encodeOverrides}
+     */
+    public DialogueScreenHandlerFactory(DialogueStateMachine dialogue, DialogueTemplate template, byte[] overrides, Text displayName, @Nullable Entity interlocutor) {
         this.dialogue = dialogue;
+        this.template = template;
+        this.overrides = overrides;
         this.displayName = displayName;
         this.interlocutor = interlocutor;
     }
 
     @Override
     public void writeScreenOpeningData(ServerPlayerEntity player, PacketByteBuf buf) {
-        DialogueStateMachine.writeToPacket(buf, this.dialogue);
+        Profiler profiler = player.server.getProfiler();
+        profiler.push("blabber");
+        profiler.push("screen_opening_data");
+        DialogueStateMachine.writeToPacket(buf, this.dialogue, player, this.template, this.overrides);
         buf.writeOptional(Optional.ofNullable(interlocutor), (b, e) -> b.writeVarInt(e.getId()));
-        buf.writeMap(
-                this.dialogue.createFullAvailabilityUpdatePacket(),
-                PacketByteBuf::writeString,
-                (b, updatedChoices) -> b.writeMap(updatedChoices, PacketByteBuf::writeVarInt, PacketByteBuf::writeBoolean)
-        );
+        this.dialogue.writeFullAvailabilityUpdate(buf);
+        profiler.pop();
+        profiler.pop();
     }
 
     @Override
@@ -0,0 +1,145 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import net.fabricmc.fabric.api.entity.event.v1.ServerEntityWorldChangeEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.profiler.Profiler;
+import org.ladysnake.blabber.impl.common.machine.ConditionDependencies;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ticks the dialogue sessions of every player that is currently in a dialogue, or about to resume one.
+ *
+ * <p>Players that are not talking to anyone never get ticked. Choice conditions of each session are refreshed
+ * every {@link org.ladysnake.blabber.impl.common.model.DialogueTemplate#conditionRefreshTicks() condition_refresh_ticks},
+ * with sessions started on the same tick spread over different phases, and at most
+ * {@link BlabberRegistrar#CONDITION_REFRESH_BUDGET} predicate tests per server tick.
+ * Sessions that go over budget are refreshed first on the next tick.
+ *
+ * <p>With {@link BlabberRegistrar#REACTIVE_CONDITION_REFRESH} enabled, sessions are only refreshed when the player state their
+ * conditions depend on changes, plus every {@link #REACTIVE_POLL_TICKS} for conditions that cannot be classified.
+ */
+public final class DialogueSessionScheduler {
+    /**
+     * Refresh interval for conditions that reactive mode cannot tie to a player event
+     */
+    static final int REACTIVE_POLL_TICKS = 20;
+    private static final List<PlayerDialogueTracker> activeSessions = new ArrayList<>();
+    /**
+     * Index of the first session to consider for a condition refresh, so that sessions skipped due to the budget get their turn
+     */
+    private static int refreshCursor;
+    private static int nextPhase;
+    private static long savedConditionEvaluations;
+
+    private DialogueSessionScheduler() {
+    }
+
+    public static void init() {
+        ServerTickEvents.END_SERVER_TICK.register(DialogueSessionScheduler::tick);
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> clear());
+        ServerEntityWorldChangeEvents.AFTER_PLAYER_CHANGE_WORLD.register((player, origin, destination) -> PlayerDialogueTracker.get(player).markConditionsDirty(ConditionDependencies.DIMENSION));
+    }
+
+    /**
+     * @return the number of players currently having their dialogue ticked
+     */
+    public static int getActiveSessionCount() {
+        return activeSessions.size();
+    }
+
+    /**
+     * @return the number of predicate tests skipped since the server started, because choices in the same dialogue shared a predicate
+     */
+    public static long getSavedConditionEvaluations() {
+        return savedConditionEvaluations;
+    }
+
+    static void recordSavedConditionEvaluations(int count) {
+        savedConditionEvaluations += count;
+    }
+
+    static void schedule(PlayerDialogueTracker tracker) {
+        if (tracker.markScheduled()) {
+            activeSessions.add(tracker);
+        }
+    }
+
+    /**
+     * @return a delay in {@code [1, refreshInterval]} before the first scheduled condition refresh of a new session
+     */
+    static int nextRefreshPhase(int refreshInterval) {
+        int phase = nextPhase++ & Integer.MAX_VALUE;
+        return 1 + phase % refreshInterval;
+    }
+
+    private static void tick(MinecraftServer server) {
+        if (activeSessions.isEmpty()) return;
+
+        Profiler profiler = server.getProfiler();
+        profiler.push("blabber");
+        profiler.push("sessions");
+        // Sessions can start or end while ticking (e.g. through dialogue actions), so iterate by index and clean up after
+        for (int i = 0; i < activeSessions.size(); i++) {
+            PlayerDialogueTracker tracker = activeSessions.get(i);
+            if (tracker.hasActiveSession()) {
+                tracker.tickSession();
+            }
+        }
+        profiler.swap("conditions");
+        refreshConditions(
+                server.getTicks(),
+                server.getGameRules().getInt(BlabberRegistrar.CONDITION_REFRESH_BUDGET),
+                server.getGameRules().getBoolean(BlabberRegistrar.REACTIVE_CONDITION_REFRESH)
+        );
+        profiler.pop();
+        activeSessions.removeIf(tracker -> !tracker.hasActiveSession() && tracker.markUnscheduled());
+        profiler.pop();
+    }
+
+    private static void refreshConditions(int serverTick, int budget, boolean reactive) {
+        int sessionCount = activeSessions.size();
+        int start = refreshCursor < sessionCount ? refreshCursor : 0;
+        int spent = 0;
+        for (int n = 0; n < sessionCount; n++) {
+            int i = (start + n) % sessionCount;
+            PlayerDialogueTracker tracker = activeSessions.get(i);
+            if (tracker.hasActiveSession() && tracker.isConditionRefreshDue(serverTick, reactive)) {
+                if (spent >= budget) {
+                    refreshCursor = i;
+                    return;
+                }
+                spent += tracker.refreshConditions(serverTick, reactive);
+            }
+        }
+    }
+
+    private static void clear() {
+        for (PlayerDialogueTracker tracker : activeSessions) {
+            tracker.markUnscheduled();
+        }
+        activeSessions.clear();
+        refreshCursor = 0;
+        savedConditionEvaluations = 0;
+    }
+}
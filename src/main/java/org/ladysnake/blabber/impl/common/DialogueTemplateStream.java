@@ -0,0 +1,200 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.Identifier;
+import org.ladysnake.blabber.api.illustration.DialogueIllustration;
+import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
+import org.ladysnake.blabber.api.layout.DialogueLayoutType;
+import org.ladysnake.blabber.impl.common.machine.DialogueStateMachine;
+import org.ladysnake.blabber.impl.common.model.DialogueChoice;
+import org.ladysnake.blabber.impl.common.model.DialogueState;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The states of a large template that a player's client does not have yet, sent a chunk at a time.
+ *
+ * <p>The screen opening only carries the template's skeleton (every state key, the layout, etc.), along with the current state
+ * and its neighbours. Each following chunk then walks the dialogue graph breadth-first from wherever the player currently is,
+ * so that the states they are most likely to reach next arrive first.
+ *
+ * <p>Each state comes with the illustrations it references that were not sent before.
+ * Illustrations that no state references are sent with the last chunk.
+ */
+final class DialogueTemplateStream {
+    /**
+     * Encoded templates larger than this get streamed instead of being sent along with the screen opening
+     */
+    static final int STREAMING_THRESHOLD = 32 * 1024;
+    /**
+     * Approximate size of each chunk, at most one of which gets sent per player every tick
+     */
+    static final int CHUNK_SIZE = 16 * 1024;
+    private static final int END_OF_STATES = 0;
+
+    private final Identifier id;
+    private final DialogueTemplate template;
+    private final long hash;
+    private final String[] stateKeys;
+    private final Object2IntMap<String> stateIndices;
+    private final BitSet sentStates;
+    private final Set<String> sentIllustrations = new HashSet<>();
+    /**
+     * Scratch space for walking the dialogue graph
+     */
+    private final BitSet visitedStates;
+    private final IntArrayFIFOQueue stateQueue = new IntArrayFIFOQueue();
+
+    DialogueTemplateStream(Identifier id, DialogueTemplate template, long hash) {
+        this.id = id;
+        this.template = template;
+        this.hash = hash;
+        this.stateKeys = DialogueStateMachine.sortedStateKeys(template);
+        this.stateIndices = new Object2IntOpenHashMap<>(this.stateKeys.length);
+        this.stateIndices.defaultReturnValue(-1);
+        for (int i = 0; i < this.stateKeys.length; i++) {
+            this.stateIndices.put(this.stateKeys[i], i);
+        }
+        this.sentStates = new BitSet(this.stateKeys.length);
+        this.visitedStates = new BitSet(this.stateKeys.length);
+    }
+
+    Identifier getId() {
+        return this.id;
+    }
+
+    long getHash() {
+        return this.hash;
+    }
+
+    boolean isComplete() {
+        return this.sentStates.cardinality() == this.stateKeys.length;
+    }
+
+    /**
+     * Writes the template's skeleton, followed by the given state and its direct neighbours, whether they were sent before or not
+     */
+    void writeOpening(PacketByteBuf buf, String currentState) {
+        buf.writeLong(this.hash);
+        buf.writeString(this.template.start());
+        buf.writeBoolean(this.template.unskippable());
+        DialogueLayoutType.writeToPacket(buf, this.template.layout());
+        buf.writeVarInt(this.template.conditionRefreshTicks());
+        buf.writeVarInt(this.stateKeys.length);
+        for (String stateKey : this.stateKeys) {
+            buf.writeString(stateKey);
+        }
+        int current = this.stateIndices.getInt(currentState);
+        if (current >= 0) {
+            // The client may have dropped what it got from a previous opening, so the illustrations are sent again too
+            this.writeState(buf, current, true);
+            List<DialogueChoice> choices = this.template.states().get(currentState).choices();
+            for (DialogueChoice choice : choices) {
+                int next = this.stateIndices.getInt(choice.next());
+                if (next >= 0 && next != current) this.writeState(buf, next, true);
+            }
+        }
+        buf.writeVarInt(END_OF_STATES);
+    }
+
+    /**
+     * Writes the next unsent states closest to the given one, up to about {@link #CHUNK_SIZE} bytes
+     */
+    void writeChunk(PacketByteBuf buf, String currentState) {
+        buf.writeLong(this.hash);
+        int start = buf.writerIndex();
+        this.visitedStates.clear();
+        this.stateQueue.clear();
+        int current = this.stateIndices.getInt(currentState);
+        if (current >= 0) {
+            this.visitedStates.set(current);
+            this.stateQueue.enqueue(current);
+        }
+        while (!this.stateQueue.isEmpty() && buf.writerIndex() - start < CHUNK_SIZE) {
+            int stateIndex = this.stateQueue.dequeueInt();
+            if (!this.sentStates.get(stateIndex)) this.writeState(buf, stateIndex, false);
+            for (DialogueChoice choice : this.template.states().get(this.stateKeys[stateIndex]).choices()) {
+                int next = this.stateIndices.getInt(choice.next());
+                if (next >= 0 && !this.visitedStates.get(next)) {
+                    this.visitedStates.set(next);
+                    this.stateQueue.enqueue(next);
+                }
+            }
+        }
+        // States that cannot be reached from the current one go last
+        for (int i = this.sentStates.nextClearBit(0); i < this.stateKeys.length && buf.writerIndex() - start < CHUNK_SIZE; i = this.sentStates.nextClearBit(i + 1)) {
+            this.writeState(buf, i, false);
+        }
+        buf.writeVarInt(END_OF_STATES);
+
+        boolean complete = this.isComplete();
+        buf.writeBoolean(complete);
+        if (complete) {
+            Map<String, DialogueIllustration> unreferenced = new HashMap<>(this.template.illustrations());
+            unreferenced.keySet().removeAll(this.sentIllustrations);
+            buf.writeMap(unreferenced, PacketByteBuf::writeString, DialogueIllustrationType::writeIllustration);
+            this.sentIllustrations.addAll(unreferenced.keySet());
+        }
+    }
+
+    private void writeState(PacketByteBuf buf, int stateIndex, boolean resendIllustrations) {
+        DialogueState state = this.template.states().get(this.stateKeys[stateIndex]);
+        buf.writeVarInt(stateIndex + 1);
+        DialogueState.writeToPacket(buf, state);
+        List<String> illustrations = new ArrayList<>(state.illustrations());
+        for (DialogueChoice choice : state.choices()) {
+            illustrations.addAll(choice.illustrations());
+        }
+        Map<String, DialogueIllustration> newIllustrations = new HashMap<>();
+        for (String name : illustrations) {
+            DialogueIllustration illustration = this.template.illustrations().get(name);
+            if (illustration != null && (this.sentIllustrations.add(name) || resendIllustrations)) {
+                newIllustrations.put(name, illustration);
+            }
+        }
+        buf.writeMap(newIllustrations, PacketByteBuf::writeString, DialogueIllustrationType::writeIllustration);
+        this.sentStates.set(stateIndex);
+    }
+
+    /**
+     * Reads states written by {@link #writeOpening} or {@link #writeChunk}, up to and excluding the completion flag of chunks
+     *
+     * @param stateKeys every state key of the template, as written in the opening
+     */
+    static void readStates(PacketByteBuf buf, String[] stateKeys, Map<String, DialogueState> states, Map<String, DialogueIllustration> illustrations) {
+        for (int entry = buf.readVarInt(); entry != END_OF_STATES; entry = buf.readVarInt()) {
+            if (entry > stateKeys.length) {
+                throw new IllegalStateException("Received unknown dialogue state #" + (entry - 1));
+            }
+            states.put(stateKeys[entry - 1], new DialogueState(buf));
+            illustrations.putAll(buf.readMap(PacketByteBuf::readString, DialogueIllustrationType::readIllustration));
+        }
+    }
+}
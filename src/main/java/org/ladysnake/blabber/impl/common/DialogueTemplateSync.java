@@ -0,0 +1,562 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import com.demonwav.mcdev.annotations.CheckEnv;
+import com.demonwav.mcdev.annotations.Env;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongConsumer;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.Util;
+import net.minecraft.util.profiler.Profiler;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.api.illustration.DialogueIllustration;
+import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
+import org.ladysnake.blabber.api.layout.DialogueLayout;
+import org.ladysnake.blabber.api.layout.DialogueLayoutType;
+import org.ladysnake.blabber.impl.common.machine.DialogueStateMachine;
+import org.ladysnake.blabber.impl.common.model.DialogueState;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.serialization.CompactPacketByteBuf;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Avoids sending dialogue templates to clients that already have them.
+ *
+ * <p>Clients keep a bounded LRU cache of templates keyed by a hash of their encoded form, optionally persisted to disk
+ * (enabled with {@code -Dblabber.diskTemplateCache=true}). Opening a dialogue then only sends the hash,
+ * followed by whichever states and illustrations got personalized for the player by {@link DialogueTemplate#parseText}.
+ *
+ * <p>The server mirrors the index of each client's cache by applying the same insertions and lookups in the same order,
+ * starting from the state the client announces when joining. If the mirror ever gets it wrong, the client opens a placeholder
+ * screen and asks for the template, which the server sends before reopening the dialogue.
+ *
+ * <p>Templates too large to comfortably fit in a screen opening are {@linkplain DialogueTemplateStream streamed} instead,
+ * and only enter the cache once the last chunk got through.
+ */
+public final class DialogueTemplateSync {
+    /**
+     * Upper bound on the cache size announced by clients, to keep the server-side mirrors small
+     */
+    private static final int MAX_MIRRORED_ENTRIES = 1024;
+    private static final int MEMORY_CACHE_SIZE = 64;
+    private static final int DISK_CACHE_SIZE = 512;
+    private static final String CACHE_FILE_EXTENSION = ".bin";
+    private static final byte FULL_TEMPLATE = 0;
+    private static final byte CACHED_TEMPLATE = 1;
+    private static final byte STREAMED_TEMPLATE = 2;
+
+    private static final Map<UUID, CacheIndex<Identifier>> clientCacheMirrors = new HashMap<>();
+    private static final Map<UUID, DialogueTemplateStream> activeStreams = new HashMap<>();
+    private static @Nullable CacheIndex<CachedTemplate> clientCache;
+    private static @Nullable PendingStream pendingStream;
+
+    private DialogueTemplateSync() {
+    }
+
+    public static void init() {
+        ServerPlayNetworking.registerGlobalReceiver(BlabberRegistrar.TEMPLATE_CACHE_STATE, (server, player, handler, buf, responseSender) -> {
+            int capacity = Math.min(buf.readVarInt(), MAX_MIRRORED_ENTRIES);
+            long[] hashes = buf.readLongArray(null, MAX_MIRRORED_ENTRIES);
+            server.execute(() -> {
+                CacheIndex<Identifier> mirror = new CacheIndex<>(capacity);
+                for (long hash : hashes) {
+                    // Ids do not matter to the mirror, the client did not tell them anyway
+                    mirror.insert(hash, Blabber.id("unknown"), null);
+                }
+                clientCacheMirrors.put(player.getUuid(), mirror);
+            });
+        });
+        ServerPlayNetworking.registerGlobalReceiver(BlabberRegistrar.TEMPLATE_REQUEST, (server, player, handler, buf, responseSender) -> {
+            int syncId = buf.readVarInt();
+            server.execute(() -> {
+                if (player.currentScreenHandler instanceof DialogueScreenHandler dialogueHandler && dialogueHandler.syncId == syncId) {
+                    PlayerDialogueTracker.get(player).resendDialogue();
+                }
+            });
+        });
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
+            clientCacheMirrors.remove(handler.getPlayer().getUuid());
+            activeStreams.remove(handler.getPlayer().getUuid());
+        });
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+            clientCacheMirrors.clear();
+            activeStreams.clear();
+        });
+        ServerTickEvents.END_SERVER_TICK.register(DialogueTemplateSync::tickStreams);
+    }
+
+    /**
+     * Writes a reference to the template if the player's client should have it cached, or the whole template otherwise,
+     * followed by the parts that got parsed differently for this player.
+     *
+     * @param template     the template as registered in the {@link DialogueRegistry}
+     * @param overrides    the parts of the template parsed differently for this player, as encoded by {@link #encodeOverrides}
+     * @param currentState the state the dialogue opens on, which must be sent first if the template gets streamed
+     */
+    public static void writeTemplate(PacketByteBuf buf, ServerPlayerEntity player, Identifier id, DialogueTemplate template, byte[] overrides, String currentState) {
+        EncodedTemplate encoded = DialogueRegistry.getEncodedTemplate(template);
+        CacheIndex<Identifier> mirror = clientCacheMirrors.get(player.getUuid());
+        if (mirror != null && mirror.use(encoded.hash()) != null) {
+            buf.writeByte(CACHED_TEMPLATE);
+            buf.writeLong(encoded.hash());
+        } else if (encoded.bytes().length > DialogueTemplateStream.STREAMING_THRESHOLD) {
+            buf.writeByte(STREAMED_TEMPLATE);
+            DialogueTemplateStream stream = activeStreams.get(player.getUuid());
+            // Reopening the screen mid-stream (e.g. for an unskippable dialogue) picks up where the stream left off
+            if (stream == null || stream.getHash() != encoded.hash()) {
+                stream = new DialogueTemplateStream(id, template, encoded.hash());
+                activeStreams.put(player.getUuid(), stream);
+            }
+            stream.writeOpening(new CompactPacketByteBuf(buf), currentState);
+        } else {
+            buf.writeByte(FULL_TEMPLATE);
+            encoded.write(buf);
+            if (mirror != null) mirror.insert(encoded.hash(), id, null);
+        }
+        buf.writeBytes(overrides);
+    }
+
+    /**
+     * Encodes the states and illustrations of a template that got parsed differently for a player, once per parsing
+     * rather than every time the dialogue screen gets opened
+     *
+     * @param template the template as registered in the {@link DialogueRegistry}
+     * @param parsed   the template with its texts parsed for the player
+     */
+    public static byte[] encodeOverrides(DialogueTemplate template, DialogueTemplate parsed) {
+        // Written with a string table of its own, which is exactly what the client reads it back with
+        CompactPacketByteBuf buf = new CompactPacketByteBuf(Unpooled.buffer());
+        DialogueTemplate.writeOverrides(buf, template, parsed);
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Sends a template for the player's client to cache, ahead of a screen opening that references it
+     */
+    static void sendTemplate(ServerPlayerEntity player, Identifier id, DialogueTemplate template) {
+        EncodedTemplate encoded = DialogueRegistry.getEncodedTemplate(template);
+        if (encoded.bytes().length > DialogueTemplateStream.STREAMING_THRESHOLD) {
+            // Too big to send in one go, make the next screen opening stream it instead
+            CacheIndex<Identifier> mirror = clientCacheMirrors.get(player.getUuid());
+            if (mirror != null) mirror.remove(encoded.hash());
+            return;
+        }
+        PacketByteBuf buf = PacketByteBufs.create();
+        encoded.write(buf);
+        ServerPlayNetworking.send(player, BlabberRegistrar.TEMPLATE_BODY, buf);
+        CacheIndex<Identifier> mirror = clientCacheMirrors.get(player.getUuid());
+        if (mirror != null) mirror.insert(encoded.hash(), id, null);
+    }
+
+    private static void tickStreams(MinecraftServer server) {
+        if (activeStreams.isEmpty()) return;
+
+        Profiler profiler = server.getProfiler();
+        profiler.push("blabber");
+        profiler.push("template_streams");
+        for (Iterator<Map.Entry<UUID, DialogueTemplateStream>> it = activeStreams.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<UUID, DialogueTemplateStream> entry = it.next();
+            DialogueTemplateStream stream = entry.getValue();
+            ServerPlayerEntity player = server.getPlayerManager().getPlayer(entry.getKey());
+            Optional<DialogueStateMachine> dialogue = player == null ? Optional.empty() : PlayerDialogueTracker.get(player).getCurrentDialogue();
+            if (dialogue.isEmpty() || !dialogue.get().getId().equals(stream.getId())) {
+                // The player moved on, whatever got sent so far will be sent again if they come back
+                it.remove();
+                continue;
+            }
+            CompactPacketByteBuf buf = new CompactPacketByteBuf(PacketByteBufs.create());
+            stream.writeChunk(buf, dialogue.get().getCurrentStateKey());
+            ServerPlayNetworking.send(player, BlabberRegistrar.TEMPLATE_CHUNK, buf);
+            if (stream.isComplete()) {
+                // The client caches the template upon receiving the last chunk
+                CacheIndex<Identifier> mirror = clientCacheMirrors.get(entry.getKey());
+                if (mirror != null) mirror.insert(stream.getHash(), stream.getId(), null);
+                it.remove();
+            }
+        }
+        profiler.pop();
+        profiler.pop();
+    }
+
+    /**
+     * @return the template written by {@link #writeTemplate}, possibly missing the states that are yet to be streamed,
+     * or an empty optional if it was not in the cache
+     */
+    @CheckEnv(Env.CLIENT)
+    public static Optional<ReceivedTemplate> readTemplate(Identifier id, PacketByteBuf buf) {
+        CacheIndex<CachedTemplate> cache = getClientCache();
+        DialogueTemplate template;
+        String[] stateKeys = null;
+        byte mode = buf.readByte();
+        if (mode == STREAMED_TEMPLATE) {
+            PendingStream stream = PendingStream.readOpening(id, new CompactPacketByteBuf(buf));
+            template = stream.toTemplate();
+            stateKeys = stream.stateKeys;
+        } else if (mode == CACHED_TEMPLATE) {
+            long hash = buf.readLong();
+            CachedTemplate cached = cache.use(hash);
+            template = cached == null ? null : cached.get(hash);
+            if (template == null) {
+                Blabber.LOGGER.warn("(Blabber) Dialogue template {} ({}) went missing from the cache, requesting it again", id, Long.toHexString(hash));
+                DialogueTemplate.placeholder().withOverrides(new CompactPacketByteBuf(buf));   // skip the overrides
+                return Optional.empty();
+            }
+            touchCacheFile(hash);
+        } else {
+            template = receiveTemplate(id, buf);
+        }
+        DialogueTemplate withOverrides = template.withOverrides(new CompactPacketByteBuf(buf));
+        return Optional.of(new ReceivedTemplate(withOverrides, stateKeys == null ? DialogueStateMachine.sortedStateKeys(withOverrides) : stateKeys));
+    }
+
+    /**
+     * Reads a chunk of the template being streamed, caching the template if it was the last chunk
+     *
+     * @return the states and illustrations that got loaded, or {@code null} if the chunk belongs to a stream that was abandoned
+     */
+    @CheckEnv(Env.CLIENT)
+    public static @Nullable LoadedStates handleTemplateChunk(PacketByteBuf packet) {
+        CompactPacketByteBuf buf = new CompactPacketByteBuf(packet);
+        PendingStream stream = pendingStream;
+        if (stream == null || buf.readLong() != stream.hash) return null;
+        Map<String, DialogueState> states = new HashMap<>();
+        Map<String, DialogueIllustration> illustrations = new HashMap<>();
+        DialogueTemplateStream.readStates(buf, stream.stateKeys, states, illustrations);
+        boolean complete = buf.readBoolean();
+        if (complete) {
+            illustrations.putAll(buf.readMap(PacketByteBuf::readString, DialogueIllustrationType::readIllustration));
+        }
+        stream.states.putAll(states);
+        stream.illustrations.putAll(illustrations);
+        // Only caching on the server's signal, so that the mirror of the cache stays in sync
+        if (complete) {
+            // Not written to disk, the reassembled template would not encode to the same bytes as the server's
+            getClientCache().insert(stream.hash, new CachedTemplate(stream.toTemplate(), false), DialogueTemplateSync::deleteCacheFile);
+            pendingStream = null;
+        }
+        return new LoadedStates(stream.id, states, illustrations);
+    }
+
+    /**
+     * Caches a template sent on {@link BlabberRegistrar#TEMPLATE_BODY}
+     */
+    @CheckEnv(Env.CLIENT)
+    public static void handleTemplateBody(PacketByteBuf buf) {
+        receiveTemplate(Blabber.id("unknown"), buf);
+    }
+
+    @CheckEnv(Env.CLIENT)
+    private static DialogueTemplate receiveTemplate(Identifier id, PacketByteBuf buf) {
+        EncodedTemplate encoded = EncodedTemplate.read(buf);
+        DialogueTemplate template = encoded.decode();
+        CachedTemplate cached = new CachedTemplate(template, isDiskCacheEnabled());
+        getClientCache().insert(encoded.hash(), cached, DialogueTemplateSync::deleteCacheFile);
+        if (isDiskCacheEnabled()) {
+            Util.getIoWorkerExecutor().execute(() -> {
+                try {
+                    Files.write(getCacheFile(encoded.hash()), encoded.bytes());
+                } catch (IOException e) {
+                    Blabber.LOGGER.warn("(Blabber) Failed to save dialogue template {} to the disk cache", id, e);
+                }
+            });
+        }
+        return template;
+    }
+
+    /**
+     * @return a packet describing the client's cache, to be sent on {@link BlabberRegistrar#TEMPLATE_CACHE_STATE} upon joining a server
+     */
+    @CheckEnv(Env.CLIENT)
+    public static PacketByteBuf createCacheStatePacket() {
+        CacheIndex<CachedTemplate> cache = getClientCache();
+        PacketByteBuf buf = PacketByteBufs.create();
+        buf.writeVarInt(cache.capacity);
+        // Least recently used first, so that the server can replay them in order
+        buf.writeLongArray(cache.entries.keySet().toLongArray());
+        return buf;
+    }
+
+    @CheckEnv(Env.CLIENT)
+    private static CacheIndex<CachedTemplate> getClientCache() {
+        if (clientCache == null) {
+            clientCache = isDiskCacheEnabled() ? loadDiskCache() : new CacheIndex<>(MEMORY_CACHE_SIZE);
+        }
+        return clientCache;
+    }
+
+    private static boolean isDiskCacheEnabled() {
+        return Boolean.getBoolean("blabber.diskTemplateCache");
+    }
+
+    private static Path getCacheDirectory() {
+        return FabricLoader.getInstance().getGameDir().resolve("blabber").resolve("template_cache");
+    }
+
+    private static Path getCacheFile(long hash) {
+        return getCacheDirectory().resolve(Long.toHexString(hash) + CACHE_FILE_EXTENSION);
+    }
+
+    private static CacheIndex<CachedTemplate> loadDiskCache() {
+        CacheIndex<CachedTemplate> cache = new CacheIndex<>(DISK_CACHE_SIZE);
+        Path directory = getCacheDirectory();
+        try {
+            Files.createDirectories(directory);
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.filter(p -> p.getFileName().toString().endsWith(CACHE_FILE_EXTENSION))
+                        .sorted(Comparator.comparing(DialogueTemplateSync::getLastModifiedTime))
+                        .toList();
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    cache.insert(Long.parseUnsignedLong(name.substring(0, name.length() - CACHE_FILE_EXTENSION.length()), 16), new CachedTemplate(null, true), DialogueTemplateSync::deleteCacheFile);
+                } catch (NumberFormatException e) {
+                    Blabber.LOGGER.warn("(Blabber) Unexpected file {} in the dialogue template cache", file);
+                }
+            }
+        } catch (IOException e) {
+            Blabber.LOGGER.warn("(Blabber) Failed to load the dialogue template cache from {}", directory, e);
+        }
+        return cache;
+    }
+
+    private static FileTime getLastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Keeps the disk cache in least-recently-used order across restarts
+     */
+    private static void touchCacheFile(long hash) {
+        if (isDiskCacheEnabled()) {
+            FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+            Util.getIoWorkerExecutor().execute(() -> {
+                try {
+                    Files.setLastModifiedTime(getCacheFile(hash), now);
+                } catch (IOException e) {
+                    Blabber.LOGGER.debug("(Blabber) Failed to touch dialogue template {} in the disk cache", Long.toHexString(hash), e);
+                }
+            });
+        }
+    }
+
+    private static void deleteCacheFile(long hash) {
+        if (isDiskCacheEnabled()) {
+            Util.getIoWorkerExecutor().execute(() -> {
+                try {
+                    Files.deleteIfExists(getCacheFile(hash));
+                } catch (IOException e) {
+                    Blabber.LOGGER.warn("(Blabber) Failed to evict dialogue template {} from the disk cache", Long.toHexString(hash), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * A template encoded with {@link DialogueTemplate#writeToPacket} in the {@linkplain CompactPacketByteBuf compact format},
+     * along with a hash of the resulting bytes
+     */
+    public record EncodedTemplate(byte[] bytes, long hash) {
+        public static EncodedTemplate encode(DialogueTemplate template) {
+            CompactPacketByteBuf buf = new CompactPacketByteBuf(Unpooled.buffer()).writeFormatVersion();
+            DialogueTemplate.writeToPacket(buf, template);
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.readBytes(bytes);
+            return new EncodedTemplate(bytes, hash(bytes));
+        }
+
+        private static long hash(byte[] bytes) {
+            return Hashing.murmur3_128().hashBytes(bytes).asLong();
+        }
+
+        static EncodedTemplate read(PacketByteBuf buf) {
+            long hash = buf.readLong();
+            return new EncodedTemplate(buf.readByteArray(), hash);
+        }
+
+        void write(PacketByteBuf buf) {
+            buf.writeLong(this.hash);
+            buf.writeByteArray(this.bytes);
+        }
+
+        DialogueTemplate decode() {
+            // Throws if the template was cached by an older version of the mod
+            return new DialogueTemplate(new CompactPacketByteBuf(Unpooled.wrappedBuffer(this.bytes)).readFormatVersion());
+        }
+    }
+
+    /**
+     * A template received by the client, which may be missing some states if it is being streamed
+     *
+     * @param stateKeys the keys of every state in the full template, in lexicographic order
+     */
+    public record ReceivedTemplate(DialogueTemplate template, String[] stateKeys) {
+    }
+
+    /**
+     * States and illustrations received in a chunk of a streamed template
+     */
+    public record LoadedStates(Identifier dialogueId, Map<String, DialogueState> states, Map<String, DialogueIllustration> illustrations) {
+    }
+
+    /**
+     * The parts of a streamed template received so far by the client
+     */
+    private static final class PendingStream {
+        private final Identifier id;
+        private final long hash;
+        private final String start;
+        private final boolean unskippable;
+        private final DialogueLayout<?> layout;
+        private final int conditionRefreshTicks;
+        private final String[] stateKeys;
+        private final Map<String, DialogueState> states = new HashMap<>();
+        private final Map<String, DialogueIllustration> illustrations = new HashMap<>();
+
+        private PendingStream(Identifier id, long hash, PacketByteBuf buf) {
+            this.id = id;
+            this.hash = hash;
+            this.start = buf.readString();
+            this.unskippable = buf.readBoolean();
+            this.layout = DialogueLayoutType.readFromPacket(buf);
+            this.conditionRefreshTicks = buf.readVarInt();
+            this.stateKeys = new String[buf.readVarInt()];
+            for (int i = 0; i < this.stateKeys.length; i++) {
+                this.stateKeys[i] = buf.readString();
+            }
+        }
+
+        /**
+         * Reads a stream opening, resuming the current stream if it is for the same template
+         */
+        static PendingStream readOpening(Identifier id, PacketByteBuf buf) {
+            long hash = buf.readLong();
+            PendingStream stream = new PendingStream(id, hash, buf);
+            if (pendingStream != null && pendingStream.hash == hash) {
+                stream = pendingStream;
+            } else {
+                pendingStream = stream;
+            }
+            DialogueTemplateStream.readStates(buf, stream.stateKeys, stream.states, stream.illustrations);
+            return stream;
+        }
+
+        DialogueTemplate toTemplate() {
+            return new DialogueTemplate(this.start, this.unskippable, new HashMap<>(this.states), new HashMap<>(this.illustrations), this.layout, this.conditionRefreshTicks);
+        }
+    }
+
+    /**
+     * A template in the client cache, which may have been dropped from memory if it can be read back from the disk
+     */
+    private static final class CachedTemplate {
+        private final @Nullable DialogueTemplate template;
+        private SoftReference<DialogueTemplate> softTemplate;
+
+        /**
+         * @param onDisk whether the template can be read back from the disk cache
+         */
+        CachedTemplate(@Nullable DialogueTemplate template, boolean onDisk) {
+            // Only let go of templates that can be recovered
+            this.template = onDisk ? null : template;
+            this.softTemplate = new SoftReference<>(template);
+        }
+
+        @Nullable DialogueTemplate get(long hash) {
+            if (this.template != null) return this.template;
+            DialogueTemplate template = this.softTemplate.get();
+            if (template == null && isDiskCacheEnabled()) {
+                try {
+                    byte[] bytes = Files.readAllBytes(getCacheFile(hash));
+                    if (EncodedTemplate.hash(bytes) != hash) return null;
+                    template = new EncodedTemplate(bytes, hash).decode();
+                    this.softTemplate = new SoftReference<>(template);
+                } catch (IOException | RuntimeException e) {
+                    Blabber.LOGGER.warn("(Blabber) Failed to read dialogue template {} from the disk cache", Long.toHexString(hash), e);
+                    return null;
+                }
+            }
+            return template;
+        }
+    }
+
+    /**
+     * Least-recently-used index of templates, by hash
+     *
+     * <p>Both sides must apply the exact same sequence of {@link #use(long) lookups} and {@link #insert insertions}
+     * for the server-side mirror to stay accurate.
+     */
+    private static final class CacheIndex<V> {
+        private final Long2ObjectLinkedOpenHashMap<V> entries = new Long2ObjectLinkedOpenHashMap<>();
+        private final int capacity;
+
+        CacheIndex(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Nullable V use(long hash) {
+            return this.entries.getAndMoveToLast(hash);
+        }
+
+        void remove(long hash) {
+            this.entries.remove(hash);
+        }
+
+        void insert(long hash, V value, @Nullable LongConsumer evictionListener) {
+            this.entries.putAndMoveToLast(hash, value);
+            while (this.entries.size() > this.capacity) {
+                long evicted = this.entries.firstLongKey();
+                this.entries.removeFirst();
+                if (evictionListener != null) evictionListener.accept(evicted);
+            }
+        }
+    }
+}
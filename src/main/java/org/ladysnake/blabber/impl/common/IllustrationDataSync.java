@@ -0,0 +1,214 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import com.demonwav.mcdev.annotations.CheckEnv;
+import com.demonwav.mcdev.annotations.Env;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import net.fabricmc.fabric.api.networking.v1.PacketSender;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.ApiStatus;
+import org.jetbrains.annotations.VisibleForTesting;
+import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.impl.common.serialization.CompactPacketByteBuf;
+
+
+/**
+ * Sends the NBT of entity illustrations by content, so that clients only download each distinct payload once.
+ *
+ * <p>Illustrations only carry a hash of their NBT on the wire. Clients look it up in their own cache,
+ * and ask the server for the payloads they never saw. Illustrations read before their payload arrived get an empty compound,
+ * which is filled in place once the payload is there, and dialogue screens then recreate their illustration renderers.
+ *
+ * <p>Since the same armour and equipment tends to show up in many dialogues, most portraits end up costing a few bytes.
+ */
+public final class IllustrationDataSync {
+    public static final Identifier DATA_REQUEST = Blabber.id("illustration_data_request");
+    public static final Identifier DATA = Blabber.id("illustration_data");
+    /**
+     * How many payloads a single request may ask for, past which the client gets disconnected
+     */
+    static final int MAX_REQUESTED_PAYLOADS = 64;
+    private static final int SERVED_DATA_SIZE = 4096;
+    private static final int CLIENT_CACHE_SIZE = 256;
+
+    /**
+     * The payloads written by this side, by hash, for clients to request. Written to by template encoding workers, guarded by itself.
+     * Kept across datapack reloads, as templates that did not change keep their encoding, and bounded by evicting the least recently
+     * written or requested payloads.
+     */
+    private static final Long2ObjectLinkedOpenHashMap<NbtCompound> servedData = new Long2ObjectLinkedOpenHashMap<>();
+    private static final Long2ObjectLinkedOpenHashMap<NbtCompound> knownData = new Long2ObjectLinkedOpenHashMap<>();
+    /**
+     * Placeholders handed out for payloads that did not arrive yet
+     */
+    private static final Long2ObjectMap<NbtCompound> pendingData = new Long2ObjectOpenHashMap<>();
+    private static final LongSet unrequestedData = new LongLinkedOpenHashSet();
+
+    private IllustrationDataSync() {
+    }
+
+    public static void init() {
+        ServerPlayNetworking.registerGlobalReceiver(DATA_REQUEST, (server, player, handler, buf, responseSender) -> {
+            long[] hashes = buf.readLongArray(null, MAX_REQUESTED_PAYLOADS);
+            DialogueActionThrottle.submitDataRequest(server, player, hashes, responseSender);
+        });
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> clearServedData());
+    }
+
+    /**
+     * @return a packet to send on {@link #DATA}, with the requested payloads that this side wrote
+     */
+    static PacketByteBuf createDataPacket(long[] hashes) {
+        PacketByteBuf response = PacketByteBufs.create();
+        int countIndex = response.writerIndex();
+        response.writeInt(0);
+        int count = 0;
+        for (long hash : hashes) {
+            NbtCompound data;
+            synchronized (servedData) {
+                data = servedData.getAndMoveToLast(hash);
+            }
+            if (data != null) {
+                response.writeLong(hash);
+                response.writeNbt(data);
+                count++;
+            }
+        }
+        response.setInt(countIndex, count);
+        return response;
+    }
+
+    /**
+     * Forgets every payload, for tests to act like a client that did not write them
+     */
+    @VisibleForTesting
+    static void clearServedData() {
+        synchronized (servedData) {
+            servedData.clear();
+        }
+    }
+
+    @ApiStatus.Internal
+    public static void writeData(PacketByteBuf buf, NbtCompound data) {
+        PacketByteBuf encoded = new PacketByteBuf(Unpooled.buffer());
+        encoded.writeNbt(data);
+        long hash = Hashing.murmur3_128().hashBytes(encoded.array(), encoded.arrayOffset() + encoded.readerIndex(), encoded.readableBytes()).asLong();
+        if (buf instanceof CompactPacketByteBuf compact) {
+            compact.putPayload(hash, data.copy());
+        }
+        synchronized (servedData) {
+            if (servedData.getAndMoveToLast(hash) == null) {
+                // The caller may still change its compound, the served payload has to keep matching the hash
+                servedData.putAndMoveToLast(hash, data.copy());
+                if (servedData.size() > SERVED_DATA_SIZE) {
+                    servedData.removeFirst();
+                }
+            }
+        }
+        buf.writeLong(hash);
+    }
+
+    /**
+     * @return the payload written by {@link #writeData}, or a placeholder to be filled once the server sent the payload
+     */
+    @ApiStatus.Internal
+    public static NbtCompound readData(PacketByteBuf buf) {
+        long hash = buf.readLong();
+        if (buf instanceof CompactPacketByteBuf compact) {
+            // Stored along with the encoding, e.g. in the dialogue bundle
+            NbtCompound payload = compact.getPayload(hash);
+            if (payload != null) return payload.copy();
+        }
+        NbtCompound data = knownData.getAndMoveToLast(hash);
+        if (data == null) {
+            // Same process as the server, e.g. singleplayer
+            synchronized (servedData) {
+                data = servedData.get(hash);
+            }
+        }
+        if (data == null) {
+            data = pendingData.computeIfAbsent(hash, h -> {
+                unrequestedData.add(h);
+                return new NbtCompound();
+            });
+        }
+        return data;
+    }
+
+    /**
+     * Asks the server for the payloads that were read but are not known yet.
+     * The server only answers one request per tick right away, so any payloads past the size limit of a request wait for the next tick.
+     */
+    @CheckEnv(Env.CLIENT)
+    public static void requestMissingData(PacketSender sender) {
+        if (!unrequestedData.isEmpty()) {
+            int count = Math.min(unrequestedData.size(), MAX_REQUESTED_PAYLOADS);
+            long[] hashes = new long[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = unrequestedData.removeFirstLong();
+            }
+            sender.sendPacket(DATA_REQUEST, PacketByteBufs.create().writeLongArray(hashes));
+        }
+    }
+
+    /**
+     * Applies a packet sent on {@link #DATA}
+     *
+     * @return {@code true} if some illustrations that were already read got their payload
+     */
+    @CheckEnv(Env.CLIENT)
+    public static boolean handleData(PacketByteBuf buf) {
+        boolean filledPlaceholders = false;
+        for (int count = buf.readInt(); count > 0; count--) {
+            long hash = buf.readLong();
+            NbtCompound data = buf.readNbt();
+            if (data == null) continue;
+            NbtCompound placeholder = pendingData.remove(hash);
+            if (placeholder != null) {
+                placeholder.copyFrom(data);
+                data = placeholder;
+                filledPlaceholders = true;
+            }
+            knownData.putAndMoveToLast(hash, data);
+            if (knownData.size() > CLIENT_CACHE_SIZE) {
+                knownData.removeFirst();
+            }
+        }
+        return filledPlaceholders;
+    }
+
+    /**
+     * Placeholders live on in cached templates, so their payloads get asked for again from the next server
+     */
+    @CheckEnv(Env.CLIENT)
+    public static void onDisconnect() {
+        unrequestedData.addAll(pendingData.keySet());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import com.mojang.serialization.Codec;
+import net.minecraft.util.Identifier;
+import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.api.DialogueCondition;
+
+public record InstancedDialogueCondition<C extends DialogueCondition>(C condition,
+                                                                     Codec<C> codec) {
+    public static final Codec<InstancedDialogueCondition<?>> CODEC = BlabberRegistrar.CONDITION_REGISTRY.getCodec()
+            .dispatch("type", InstancedDialogueCondition::codec, InstancedDialogueCondition::xmap);
+    private static final Identifier UNREGISTERED = Blabber.id("unregistered_condition");
+
+    private static <C extends DialogueCondition> Codec<InstancedDialogueCondition<C>> xmap(Codec<C> c) {
+        return c.xmap(a -> new InstancedDialogueCondition<>(a, c), InstancedDialogueCondition::condition);
+    }
+
+    /**
+     * @return the id this condition's type was registered with
+     */
+    public Identifier getTypeId() {
+        Identifier id = BlabberRegistrar.CONDITION_REGISTRY.getId(this.codec);
+        return id == null ? UNREGISTERED : id;
+    }
+
+    @Override
+    public String toString() {
+        Identifier id = BlabberRegistrar.CONDITION_REGISTRY.getId(this.codec);
+        if (id == null) return "(unregistered condition)";
+        return id + " " + this.condition;
+    }
+}
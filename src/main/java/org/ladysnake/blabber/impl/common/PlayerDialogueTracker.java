@@ -19,37 +19,66 @@ package org.ladysnake.blabber.impl.common;
 
 import com.google.common.base.Preconditions;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import dev.onyxstudios.cca.api.v3.component.Component;
 import dev.onyxstudios.cca.api.v3.component.ComponentKey;
 import dev.onyxstudios.cca.api.v3.component.ComponentRegistry;
-import dev.onyxstudios.cca.api.v3.component.tick.ServerTickingComponent;
+import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.item.ItemStack;
 import net.minecraft.loot.context.LootContext;
 import net.minecraft.loot.context.LootContextParameters;
 import net.minecraft.loot.context.LootContextTypes;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtElement;
 import net.minecraft.network.PacketByteBuf;
+import net.minecraft.screen.ScreenHandler;
+import net.minecraft.screen.ScreenHandlerListener;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.text.Text;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.profiler.Profiler;
 import org.jetbrains.annotations.Nullable;
 import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.impl.common.machine.ChoiceConditionContext;
+import org.ladysnake.blabber.impl.common.machine.ChoiceConditionTable;
+import org.ladysnake.blabber.impl.common.machine.ConditionDependencies;
 import org.ladysnake.blabber.impl.common.machine.DialogueStateMachine;
 import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
 
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 
-public final class PlayerDialogueTracker implements ServerTickingComponent {
+public final class PlayerDialogueTracker implements Component {
     public static final ComponentKey<PlayerDialogueTracker> KEY = ComponentRegistry.getOrCreate(Blabber.id("dialogue_tracker"), PlayerDialogueTracker.class);
 
     private final PlayerEntity player;
     private @Nullable DialogueStateMachine currentDialogue;
+    /**
+     * The unparsed template of the {@link #currentDialogue}
+     */
+    private @Nullable DialogueTemplate currentTemplate;
+    /**
+     * The parts of the {@link #currentDialogue} that got parsed for this player, encoded for every screen opening to reuse
+     */
+    private byte @Nullable [] currentOverrides;
     private @Nullable Entity interlocutor;
     private @Nullable DeserializedState deserializedState;
     private int resumptionAttempts = 0;
+    private boolean scheduled;
+    private int conditionRefreshInterval = DialogueTemplate.DEFAULT_CONDITION_REFRESH_TICKS;
+    private int nextConditionRefresh;
+    /**
+     * {@link ConditionDependencies} flags for the parts of the player state that changed since the last condition refresh
+     */
+    private int dirtyConditionDependencies;
+    private float lastHealth;
+    private int lastSelectedSlot;
+    private @Nullable ScreenHandlerListener inventoryListener;
+    private @Nullable SessionConditionContext conditionContext;
 
     public PlayerDialogueTracker(PlayerEntity player) {
         this.player = player;
@@ -75,10 +104,17 @@ public final class PlayerDialogueTracker implements ServerTickingComponent {
         ServerPlayerEntity serverPlayer = ((ServerPlayerEntity) this.player);
         this.interlocutor = interlocutor;
         try {
-            DialogueTemplate parsedTemplate = template.parseText(CommandDialogueAction.getSource(serverPlayer), serverPlayer);
-            this.currentDialogue = new DialogueStateMachine(id, parsedTemplate, start);
-            this.updateConditions(serverPlayer, this.currentDialogue);
-            this.openDialogueScreen();
+            DialogueTemplate parsedTemplate = parseText(serverPlayer, template);
+            ChoiceConditionTable conditionTable = DialogueRegistry.getConditionTable(template, serverPlayer.server.getPredicateManager());
+            this.currentDialogue = new DialogueStateMachine(id, parsedTemplate, conditionTable, start);
+            this.currentTemplate = template;
+            this.currentOverrides = DialogueTemplateSync.encodeOverrides(template, parsedTemplate);
+            DialogueSessionScheduler.schedule(this);
+            this.updateConditions(this.currentDialogue);
+            this.conditionRefreshInterval = template.conditionRefreshTicks();
+            this.nextConditionRefresh = serverPlayer.server.getTicks() + DialogueSessionScheduler.nextRefreshPhase(this.conditionRefreshInterval);
+            this.watchPlayerState();
+            this.showDialogue();
             return this.currentDialogue;
         } catch (CommandSyntaxException e) {
             this.interlocutor = null;
@@ -86,9 +122,28 @@ public final class PlayerDialogueTracker implements ServerTickingComponent {
         }
     }
 
+    private static DialogueTemplate parseText(ServerPlayerEntity player, DialogueTemplate template) throws CommandSyntaxException {
+        Profiler profiler = player.server.getProfiler();
+        profiler.push("blabber");
+        profiler.push("parse_text");
+        try {
+            return template.parseText(CommandDialogueAction.getSource(player), player, DialogueRegistry.getPersonalizedStates(template));
+        } finally {
+            profiler.pop();
+            profiler.pop();
+        }
+    }
+
     public void endDialogue() {
         this.currentDialogue = null;
+        this.currentTemplate = null;
+        this.currentOverrides = null;
         this.interlocutor = null;
+        this.conditionContext = null;
+        if (this.inventoryListener != null) {
+            this.player.playerScreenHandler.removeListener(this.inventoryListener);
+            this.inventoryListener = null;
+        }
 
         if (this.player instanceof ServerPlayerEntity sp && this.player.currentScreenHandler instanceof DialogueScreenHandler) {
             sp.closeHandledScreen();
@@ -129,6 +184,7 @@ public final class PlayerDialogueTracker implements ServerTickingComponent {
                     UUID interlocutorUuid = tag.containsUuid("interlocutor") ? tag.getUuid("interlocutor") : null;
                     String selectedState = tag.contains("current_dialogue_state", NbtElement.STRING_TYPE) ? tag.getString("current_dialogue_state") : null;
                     this.deserializedState = new DeserializedState(dialogueId, dialogueTemplate.get(), selectedState, interlocutorUuid);
+                    DialogueSessionScheduler.schedule(this);
                 }
             }
         }
@@ -145,8 +201,32 @@ public final class PlayerDialogueTracker implements ServerTickingComponent {
         }
     }
 
-    @Override
-    public void serverTick() {
+    /**
+     * @return {@code true} if this player is in a dialogue or about to resume one, and should get ticked by the {@link DialogueSessionScheduler}
+     */
+    boolean hasActiveSession() {
+        return (this.currentDialogue != null || this.deserializedState != null) && !this.player.isRemoved();
+    }
+
+    /**
+     * @return {@code true} if this tracker was not already scheduled
+     */
+    boolean markScheduled() {
+        boolean wasScheduled = this.scheduled;
+        this.scheduled = true;
+        return !wasScheduled;
+    }
+
+    /**
+     * @return {@code true} if this tracker was scheduled
+     */
+    boolean markUnscheduled() {
+        boolean wasScheduled = this.scheduled;
+        this.scheduled = false;
+        return wasScheduled;
+    }
+
+    void tickSession() {
         DeserializedState saved = this.deserializedState;
         ServerPlayerEntity serverPlayer = (ServerPlayerEntity) this.player;
         if (saved != null) {
@@ -178,18 +258,95 @@ public final class PlayerDialogueTracker implements ServerTickingComponent {
                 }
             }
 
-            try {
-                PacketByteBuf update = this.updateConditions(serverPlayer, this.currentDialogue);
+            if (this.player.getHealth() != this.lastHealth) {
+                this.lastHealth = this.player.getHealth();
+                this.markConditionsDirty(ConditionDependencies.HEALTH);
+            }
+            if (this.player.getInventory().selectedSlot != this.lastSelectedSlot) {
+                this.lastSelectedSlot = this.player.getInventory().selectedSlot;
+                this.markConditionsDirty(ConditionDependencies.INVENTORY);
+            }
+        }
+    }
 
-                if (update != null) {
-                    ServerPlayNetworking.send(serverPlayer, Blabber.id("choice_availability"), update);
+    /**
+     * Notifies this tracker that some part of the player state changed, which may affect choice conditions in reactive mode
+     *
+     * @param dependencies {@link ConditionDependencies} flags for what changed
+     */
+    public void markConditionsDirty(int dependencies) {
+        this.dirtyConditionDependencies |= dependencies;
+    }
+
+    private void watchPlayerState() {
+        this.dirtyConditionDependencies = ConditionDependencies.NONE;
+        this.lastHealth = this.player.getHealth();
+        this.lastSelectedSlot = this.player.getInventory().selectedSlot;
+        if (this.inventoryListener == null) {
+            // Slot updates get detected every tick while syncing the player's inventory, whatever screen is open.
+            // Removed when the dialogue ends, so that only players in a dialogue pay for it
+            this.inventoryListener = new ScreenHandlerListener() {
+                @Override
+                public void onSlotUpdate(ScreenHandler handler, int slotId, ItemStack stack) {
+                    PlayerDialogueTracker.this.markConditionsDirty(ConditionDependencies.INVENTORY);
                 }
-            } catch (CommandSyntaxException e) {
-                throw new IllegalStateException("Error while updating dialogue conditions", e);
-            }
+
+                @Override
+                public void onPropertyUpdate(ScreenHandler handler, int property, int value) {
+                    // NO-OP
+                }
+            };
+            this.player.playerScreenHandler.addListener(this.inventoryListener);
         }
     }
 
+    /**
+     * In reactive mode, a refresh is only due when some player state the dialogue's conditions depend on has changed,
+     * or periodically if some conditions could not be classified.
+     */
+    boolean isConditionRefreshDue(int serverTick, boolean reactive) {
+        DialogueStateMachine dialogue = this.currentDialogue;
+        if (dialogue == null) return false;
+        boolean pollDue = serverTick - this.nextConditionRefresh >= 0;
+        if (!reactive) return pollDue;
+        int dependencies = dialogue.getConditionDependencies();
+        return (this.dirtyConditionDependencies & dependencies) != 0
+                || (pollDue && (dependencies & ConditionDependencies.UNKNOWN) != 0);
+    }
+
+    /**
+     * Re-evaluates the conditions in scope of the current dialogue state, and sends any resulting change to the client.
+     *
+     * @return the number of predicates that got tested
+     */
+    int refreshConditions(int serverTick, boolean reactive) {
+        DialogueStateMachine dialogue = this.currentDialogue;
+        if (dialogue == null) return 0;
+
+        ServerPlayerEntity serverPlayer = (ServerPlayerEntity) this.player;
+        int evaluations = dialogue.getConditionEvaluations();
+        this.nextConditionRefresh = serverTick + (reactive ? Math.max(DialogueSessionScheduler.REACTIVE_POLL_TICKS, this.conditionRefreshInterval) : this.conditionRefreshInterval);
+        this.dirtyConditionDependencies = ConditionDependencies.NONE;
+        Profiler profiler = serverPlayer.server.getProfiler();
+        profiler.push("evaluate");
+        boolean changed = this.updateConditions(dialogue);
+        // Nothing gets sent unless some choice actually changed, the client can resync if it misses anything
+        if (changed && this.player.currentScreenHandler instanceof DialogueScreenHandler handler) {
+            profiler.swap("availability_packet");
+            ServerPlayNetworking.send(serverPlayer, BlabberRegistrar.CHOICE_AVAILABILITY, handler.createAvailabilityDeltaPacket());
+        }
+        profiler.pop();
+        return dialogue.getConditionEvaluations() - evaluations;
+    }
+
+    /**
+     * Refreshes conditions right away instead of waiting for the {@link DialogueSessionScheduler}, e.g. after the player made a choice
+     */
+    void refreshConditionsNow() {
+        MinecraftServer server = ((ServerPlayerEntity) this.player).server;
+        this.refreshConditions(server.getTicks(), server.getGameRules().getBoolean(BlabberRegistrar.REACTIVE_CONDITION_REFRESH));
+    }
+
     private void tryResumeDialogue(Identifier id, DialogueTemplate template, String selectedState, Entity interlocutor) {
         try {
             this.startDialogue0(id, template, selectedState, interlocutor);
@@ -198,19 +355,94 @@ public final class PlayerDialogueTracker implements ServerTickingComponent {
         }
     }
 
-    private @Nullable PacketByteBuf updateConditions(ServerPlayerEntity player, DialogueStateMachine currentDialogue) throws CommandSyntaxException {
+    private boolean updateConditions(DialogueStateMachine currentDialogue) {
         if (currentDialogue.hasConditions()) {
-            return currentDialogue.updateConditions(new LootContext.Builder(player.getWorld())
-                    .parameter(LootContextParameters.ORIGIN, player.getPos())
-                    .optionalParameter(LootContextParameters.THIS_ENTITY, player)
-                    .build(LootContextTypes.COMMAND));
+            int savedEvaluations = currentDialogue.getSavedConditionEvaluations();
+            boolean changed = currentDialogue.updateConditions(this.getConditionContext());
+            DialogueSessionScheduler.recordSavedConditionEvaluations(currentDialogue.getSavedConditionEvaluations() - savedEvaluations);
+            return changed;
+        }
+        return false;
+    }
+
+    private SessionConditionContext getConditionContext() {
+        if (this.conditionContext == null) {
+            this.conditionContext = new SessionConditionContext();
+        }
+        return this.conditionContext;
+    }
+
+    /**
+     * Sends the current template again and reopens the dialogue screen, for clients that did not have the template cached after all
+     */
+    void resendDialogue() {
+        if (this.currentDialogue != null && this.currentTemplate != null) {
+            DialogueTemplateSync.sendTemplate((ServerPlayerEntity) this.player, this.currentDialogue.getId(), this.currentTemplate);
+            this.showDialogue();
+        }
+    }
+
+    /**
+     * Shows the current dialogue in the dialogue screen the player already has open if possible,
+     * which spares the client from closing it and initializing a new one
+     */
+    private void showDialogue() {
+        Preconditions.checkState(this.currentDialogue != null && this.currentTemplate != null);
+        ServerPlayerEntity serverPlayer = (ServerPlayerEntity) this.player;
+        if (this.player.currentScreenHandler instanceof DialogueScreenHandler handler
+                && handler.canReplaceDialogue(this.currentDialogue)
+                && ServerPlayNetworking.canSend(serverPlayer, BlabberRegistrar.REPLACE_DIALOGUE)) {
+            PacketByteBuf buf = PacketByteBufs.create();
+            buf.writeVarInt(handler.syncId);
+            this.createScreenHandlerFactory().writeScreenOpeningData(serverPlayer, buf);
+            handler.replaceDialogue(this.currentDialogue, this.interlocutor);
+            ServerPlayNetworking.send(serverPlayer, BlabberRegistrar.REPLACE_DIALOGUE, buf);
+        } else {
+            this.openDialogueScreen();
         }
-        return null;
     }
 
     private void openDialogueScreen() {
-        Preconditions.checkState(this.currentDialogue != null);
-        this.player.openHandledScreen(new DialogueScreenHandlerFactory(this.currentDialogue, Text.of("Blabber Dialogue Screen"), this.interlocutor));
+        Preconditions.checkState(this.currentDialogue != null && this.currentTemplate != null);
+        this.player.openHandledScreen(this.createScreenHandlerFactory());
+    }
+
+    private DialogueScreenHandlerFactory createScreenHandlerFactory() {
+        return new DialogueScreenHandlerFactory(Objects.requireNonNull(this.currentDialogue), Objects.requireNonNull(this.currentTemplate), Objects.requireNonNull(this.currentOverrides), Text.of("Blabber Dialogue Screen"), this.interlocutor);
+    }
+
+    /**
+     * Reused for every condition update of a session
+     */
+    private final class SessionConditionContext implements ChoiceConditionContext {
+        private @Nullable LootContext lootContext;
+
+        @Override
+        public ServerPlayerEntity getPlayer() {
+            return (ServerPlayerEntity) PlayerDialogueTracker.this.player;
+        }
+
+        @Override
+        public @Nullable Entity getInterlocutor() {
+            return PlayerDialogueTracker.this.interlocutor;
+        }
+
+        /**
+         * The loot context only references the player and its position, so it can be reused for as long as the player stays still
+         */
+        @Override
+        public LootContext getLootContext() {
+            ServerPlayerEntity player = this.getPlayer();
+            LootContext context = this.lootContext;
+            if (context == null || context.getWorld() != player.getWorld() || context.get(LootContextParameters.ORIGIN) != player.getPos()) {
+                context = new LootContext.Builder(player.getWorld())
+                        .parameter(LootContextParameters.ORIGIN, player.getPos())
+                        .optionalParameter(LootContextParameters.THIS_ENTITY, player)
+                        .build(LootContextTypes.COMMAND);
+                this.lootContext = context;
+            }
+            return context;
+        }
     }
 
     private record DeserializedState(Identifier dialogueId, DialogueTemplate template, String selectedState,
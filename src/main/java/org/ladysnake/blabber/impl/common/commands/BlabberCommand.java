@@ -30,6 +30,7 @@ public final class BlabberCommand {
             .requires(Permissions.require("dialogue.start", 2))
             .then(DialogueSubCommand.dialogueSubtree())
             .then(SettingsSubCommand.settingsSubtree())
+            .then(StatsSubCommand.statsSubtree())
         );
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.commands;
+
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import me.lucko.fabric.api.permissions.v0.Permissions;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import net.minecraft.util.Identifier;
+import org.ladysnake.blabber.impl.common.DialogueActionThrottle;
+import org.ladysnake.blabber.impl.common.DialogueSessionScheduler;
+import org.ladysnake.blabber.impl.common.machine.PredicateTiming;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static net.minecraft.server.command.CommandManager.literal;
+
+public final class StatsSubCommand {
+    public static final String STATS_SUBCOMMAND = "stats";
+    public static final int MAX_DISPLAYED_PREDICATES = 20;
+    public static final int MAX_DISPLAYED_PLAYERS = 20;
+
+    static LiteralArgumentBuilder<ServerCommandSource> statsSubtree() {
+        return literal(STATS_SUBCOMMAND)
+                .requires(Permissions.require("dialogue.stats", 2))
+                .then(literal("predicates")
+                        .executes(context -> showPredicateStats(context.getSource()))
+                        .then(literal("start")
+                                .executes(context -> togglePredicateStats(context.getSource(), true))
+                        )
+                        .then(literal("stop")
+                                .executes(context -> togglePredicateStats(context.getSource(), false))
+                        )
+                        .then(literal("reset")
+                                .executes(context -> resetPredicateStats(context.getSource()))
+                        )
+                )
+                .then(literal("actions")
+                        .executes(context -> showActionStats(context.getSource()))
+                        .then(literal("reset")
+                                .executes(context -> resetActionStats(context.getSource()))
+                        )
+                );
+    }
+
+    /**
+     * /blabber stats predicates
+     */
+    private static int showPredicateStats(ServerCommandSource source) {
+        source.sendFeedback(Text.translatable(
+                "blabber:commands.stats.predicates.header",
+                DialogueSessionScheduler.getActiveSessionCount(),
+                DialogueSessionScheduler.getSavedConditionEvaluations()
+        ), false);
+
+        if (!PredicateTiming.isEnabled()) {
+            source.sendFeedback(Text.translatable("blabber:commands.stats.predicates.disabled"), false);
+        }
+
+        // Slowest first, that's what people are looking for
+        List<Map.Entry<Identifier, PredicateTiming>> timings = new ArrayList<>();
+        for (Map.Entry<Identifier, PredicateTiming> entry : PredicateTiming.getAll().entrySet()) {
+            if (entry.getValue().count() > 0) timings.add(entry);
+        }
+        timings.sort(Comparator.comparingLong((Map.Entry<Identifier, PredicateTiming> e) -> e.getValue().totalNanos()).reversed());
+
+        if (timings.isEmpty()) {
+            source.sendFeedback(Text.translatable("blabber:commands.stats.predicates.empty"), false);
+        }
+
+        for (Map.Entry<Identifier, PredicateTiming> entry : timings.subList(0, Math.min(MAX_DISPLAYED_PREDICATES, timings.size()))) {
+            PredicateTiming timing = entry.getValue();
+            source.sendFeedback(Text.translatable(
+                    "blabber:commands.stats.predicates.entry",
+                    entry.getKey().toString(),
+                    timing.count(),
+                    formatMicros(timing.totalNanos()),
+                    formatMicros(timing.totalNanos() / timing.count()),
+                    formatMicros(timing.maxNanos())
+            ), false);
+        }
+
+        return timings.size();
+    }
+
+    /**
+     * /blabber stats predicates start|stop
+     */
+    private static int togglePredicateStats(ServerCommandSource source, boolean enabled) {
+        PredicateTiming.setEnabled(enabled);
+        source.sendFeedback(Text.translatable(enabled ? "blabber:commands.stats.predicates.started" : "blabber:commands.stats.predicates.stopped"), true);
+        return 1;
+    }
+
+    /**
+     * /blabber stats predicates reset
+     */
+    private static int resetPredicateStats(ServerCommandSource source) {
+        PredicateTiming.resetAll();
+        source.sendFeedback(Text.translatable("blabber:commands.stats.predicates.reset"), true);
+        return 1;
+    }
+
+    /**
+     * /blabber stats actions
+     */
+    private static int showActionStats(ServerCommandSource source) {
+        source.sendFeedback(Text.translatable("blabber:commands.stats.actions.header", DialogueActionThrottle.getTotalDropped()), false);
+
+        // Worst offenders first
+        List<Map.Entry<String, Long>> dropped = new ArrayList<>(DialogueActionThrottle.getDroppedByPlayer().entrySet());
+        dropped.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        if (dropped.isEmpty()) {
+            source.sendFeedback(Text.translatable("blabber:commands.stats.actions.empty"), false);
+        }
+
+        for (Map.Entry<String, Long> entry : dropped.subList(0, Math.min(MAX_DISPLAYED_PLAYERS, dropped.size()))) {
+            source.sendFeedback(Text.translatable("blabber:commands.stats.actions.entry", entry.getKey(), entry.getValue()), false);
+        }
+
+        return dropped.size();
+    }
+
+    /**
+     * /blabber stats actions reset
+     */
+    private static int resetActionStats(ServerCommandSource source) {
+        DialogueActionThrottle.resetCounters(source.getServer());
+        source.sendFeedback(Text.translatable("blabber:commands.stats.actions.reset"), true);
+        return 1;
+    }
+
+    private static String formatMicros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+}
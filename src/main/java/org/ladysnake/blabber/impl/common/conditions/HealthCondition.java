@@ -0,0 +1,41 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.conditions;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraft.entity.Entity;
+import net.minecraft.server.network.ServerPlayerEntity;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.api.DialogueCondition;
+
+/**
+ * Passes if the player's health is within the given bounds, inclusive
+ */
+public record HealthCondition(float min, float max) implements DialogueCondition {
+    public static final Codec<HealthCondition> CODEC = RecordCodecBuilder.create(instance -> instance.group(
+            Codec.FLOAT.optionalFieldOf("min", Float.NEGATIVE_INFINITY).forGetter(HealthCondition::min),
+            Codec.FLOAT.optionalFieldOf("max", Float.POSITIVE_INFINITY).forGetter(HealthCondition::max)
+    ).apply(instance, HealthCondition::new));
+
+    @Override
+    public boolean test(ServerPlayerEntity player, @Nullable Entity interlocutor) {
+        float health = player.getHealth();
+        return health >= this.min && health <= this.max;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.conditions;
+
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraft.entity.Entity;
+import net.minecraft.item.Item;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.registry.Registry;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.api.DialogueCondition;
+
+/**
+ * Passes if the player holds the given item in either hand
+ */
+public record HoldingItemCondition(Item item) implements DialogueCondition {
+    public static final Codec<HoldingItemCondition> CODEC = RecordCodecBuilder.create(instance -> instance.group(
+            Registry.ITEM.getCodec().fieldOf("item").forGetter(HoldingItemCondition::item)
+    ).apply(instance, HoldingItemCondition::new));
+
+    @Override
+    public boolean test(ServerPlayerEntity player, @Nullable Entity interlocutor) {
+        return player.isHolding(this.item);
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+/**
+ * Built-in dialogue conditions, tested without building a loot context
+ */
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ApiStatus.Internal
+package org.ladysnake.blabber.impl.common.conditions;
+
+import net.minecraft.util.annotation.FieldsAreNonnullByDefault;
+import net.minecraft.util.annotation.MethodsReturnNonnullByDefault;
+import org.jetbrains.annotations.ApiStatus;
@@ -25,7 +25,6 @@ import net.minecraft.server.command.ServerCommandSource;
 import org.jetbrains.annotations.Nullable;
 import org.ladysnake.blabber.api.illustration.DialogueIllustration;
 import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
-import org.ladysnake.blabber.impl.common.BlabberRegistrar;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -37,17 +36,8 @@ public record DialogueIllustrationCollection(List<DialogueIllustration> elements
 
     public static final DialogueIllustrationType<DialogueIllustrationCollection> TYPE = new DialogueIllustrationType<>(
             CODEC,
-            buf -> new DialogueIllustrationCollection(buf.readList(b -> {
-                DialogueIllustrationType<?> type = b.readRegistryValue(BlabberRegistrar.ILLUSTRATION_REGISTRY);
-                assert type != null;
-                return type.readFromPacket(b);
-            })),
-            (buf, item) ->
-                buf.writeCollection(item.elements, (b, i) -> {
-                    // Write the type, then the packet itself.
-                    b.writeRegistryValue(BlabberRegistrar.ILLUSTRATION_REGISTRY, i.getType());
-                    i.getType().writeToPacketUnsafe(b, i);
-                })
+            buf -> new DialogueIllustrationCollection(buf.readList(DialogueIllustrationType::readIllustration)),
+            (buf, item) -> buf.writeCollection(item.elements, DialogueIllustrationType::writeIllustration)
     );
 
     @Override
@@ -24,6 +24,7 @@ import net.minecraft.nbt.NbtCompound;
 import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
 import org.ladysnake.blabber.impl.common.model.IllustrationAnchor;
 import org.ladysnake.blabber.impl.common.serialization.FailingOptionalFieldCodec;
+import org.ladysnake.blabber.impl.common.serialization.OptionalSerialization;
 
 public record DialogueIllustrationItem(ItemStack stack, IllustrationAnchor anchor, int x, int y, float scale,
                                        boolean showTooltip) implements SizedDialogueIllustration {
@@ -38,12 +39,12 @@ public record DialogueIllustrationItem(ItemStack stack, IllustrationAnchor ancho
 
     public static final DialogueIllustrationType<DialogueIllustrationItem> TYPE = new DialogueIllustrationType<>(
             CODEC,
-            buf -> new DialogueIllustrationItem(ItemStack.fromNbt(buf.readNbt()), buf.readEnumConstant(IllustrationAnchor.class), buf.readInt(), buf.readInt(), buf.readFloat(), buf.readBoolean()),
+            buf -> new DialogueIllustrationItem(ItemStack.fromNbt(buf.readNbt()), buf.readEnumConstant(IllustrationAnchor.class), OptionalSerialization.readSignedVarInt(buf), OptionalSerialization.readSignedVarInt(buf), buf.readFloat(), buf.readBoolean()),
             (buf, item) -> {
                 buf.writeNbt(item.stack().writeNbt(new NbtCompound()));
                 buf.writeEnumConstant(item.anchor());
-                buf.writeInt(item.x());
-                buf.writeInt(item.y());
+                OptionalSerialization.writeSignedVarInt(buf, item.x());
+                OptionalSerialization.writeSignedVarInt(buf, item.y());
                 buf.writeFloat(item.scale());
                 buf.writeBoolean(item.showTooltip());
             }
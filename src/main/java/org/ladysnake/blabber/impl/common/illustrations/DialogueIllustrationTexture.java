@@ -58,33 +58,24 @@ public record DialogueIllustrationTexture(
     ).apply(instance, DialogueIllustrationTexture::new));
 
     public static final DialogueIllustrationType<DialogueIllustrationTexture> TYPE = new DialogueIllustrationType<>(CODEC,
-            buf -> new DialogueIllustrationTexture(
-                    buf.readIdentifier(),
-                    buf.readEnumConstant(IllustrationAnchor.class),
-                    buf.readVarInt(),
-                    buf.readVarInt(),
-                    buf.readVarInt(),
-                    buf.readVarInt(),
-                    OptionalSerialization.readOptionalInt(buf),
-                    OptionalSerialization.readOptionalInt(buf),
-                    OptionalSerialization.readOptionalInt(buf),
-                    OptionalSerialization.readOptionalInt(buf),
-                    OptionalSerialization.readOptionalInt(buf),
-                    OptionalSerialization.readOptionalInt(buf)
-            ),
+            buf -> {
+                Identifier texture = buf.readIdentifier();
+                IllustrationAnchor anchor = buf.readEnumConstant(IllustrationAnchor.class);
+                int x = OptionalSerialization.readSignedVarInt(buf);
+                int y = OptionalSerialization.readSignedVarInt(buf);
+                int width = OptionalSerialization.readSignedVarInt(buf);
+                int height = OptionalSerialization.readSignedVarInt(buf);
+                OptionalInt[] region = OptionalSerialization.readOptionalInts(buf, 6);
+                return new DialogueIllustrationTexture(texture, anchor, x, y, width, height, region[0], region[1], region[2], region[3], region[4], region[5]);
+            },
             (buf, image) -> {
                 buf.writeIdentifier(image.texture());
                 buf.writeEnumConstant(image.anchor());
-                buf.writeVarInt(image.x());
-                buf.writeVarInt(image.y());
-                buf.writeVarInt(image.width());
-                buf.writeVarInt(image.height());
-                OptionalSerialization.writeOptionalInt(buf, image.u());
-                OptionalSerialization.writeOptionalInt(buf, image.v());
-                OptionalSerialization.writeOptionalInt(buf, image.textureWidth());
-                OptionalSerialization.writeOptionalInt(buf, image.textureHeight());
-                OptionalSerialization.writeOptionalInt(buf, image.regionWidth());
-                OptionalSerialization.writeOptionalInt(buf, image.regionHeight());
+                OptionalSerialization.writeSignedVarInt(buf, image.x());
+                OptionalSerialization.writeSignedVarInt(buf, image.y());
+                OptionalSerialization.writeSignedVarInt(buf, image.width());
+                OptionalSerialization.writeSignedVarInt(buf, image.height());
+                OptionalSerialization.writeOptionalInts(buf, image.u(), image.v(), image.textureWidth(), image.textureHeight(), image.regionWidth(), image.regionHeight());
             }
     );
 
@@ -26,9 +26,11 @@ import net.minecraft.nbt.NbtCompound;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.util.Arm;
 import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
+import org.ladysnake.blabber.impl.common.IllustrationDataSync;
 import org.ladysnake.blabber.impl.common.PortedCodecs;
 import org.ladysnake.blabber.impl.common.model.IllustrationAnchor;
 import org.ladysnake.blabber.impl.common.serialization.FailingOptionalFieldCodec;
+import org.ladysnake.blabber.impl.common.serialization.OptionalSerialization;
 
 import java.util.*;
 
@@ -63,28 +65,28 @@ public record DialogueIllustrationFakePlayer(GameProfile profile,
             buf -> new DialogueIllustrationFakePlayer(
                     buf.readGameProfile(),
                     buf.readEnumConstant(IllustrationAnchor.class),
-                    buf.readVarInt(),
-                    buf.readVarInt(),
-                    buf.readVarInt(),
-                    buf.readVarInt(),
-                    buf.readVarInt(),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
                     buf.readFloat(),
                     new StareTarget(buf),
                     buf.readOptional(PlayerModelOptions::new),
-                    buf.readOptional(PacketByteBuf::readNbt)
+                    buf.readOptional(IllustrationDataSync::readData)
             ),
             (buf, i) -> {
                 buf.writeGameProfile(i.profile());
                 buf.writeEnumConstant(i.anchor());
-                buf.writeVarInt(i.x());
-                buf.writeVarInt(i.y());
-                buf.writeVarInt(i.width());
-                buf.writeVarInt(i.height());
-                buf.writeVarInt(i.entitySize());
+                OptionalSerialization.writeSignedVarInt(buf, i.x());
+                OptionalSerialization.writeSignedVarInt(buf, i.y());
+                OptionalSerialization.writeSignedVarInt(buf, i.width());
+                OptionalSerialization.writeSignedVarInt(buf, i.height());
+                OptionalSerialization.writeSignedVarInt(buf, i.entitySize());
                 buf.writeFloat(i.yOffset());
                 StareTarget.writeToPacket(buf, i.stareAt());
                 buf.writeOptional(i.modelOptions(), (b, opts) -> opts.writeToBuffer(b));
-                buf.writeOptional(i.data(), PacketByteBuf::writeNbt);
+                buf.writeOptional(i.data(), IllustrationDataSync::writeData);
             }
     );
 
@@ -21,9 +21,9 @@ import com.mojang.serialization.Codec;
 import com.mojang.serialization.MapCodec;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
 import net.minecraft.nbt.NbtCompound;
-import net.minecraft.network.PacketByteBuf;
 import net.minecraft.util.Identifier;
 import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
+import org.ladysnake.blabber.impl.common.IllustrationDataSync;
 import org.ladysnake.blabber.impl.common.model.IllustrationAnchor;
 import org.ladysnake.blabber.impl.common.serialization.EitherMapCodec;
 import org.ladysnake.blabber.impl.common.serialization.FailingOptionalFieldCodec;
@@ -69,26 +69,26 @@ public record DialogueIllustrationNbtEntity(Identifier id, IllustrationAnchor an
             buf -> new DialogueIllustrationNbtEntity(
                     buf.readIdentifier(),
                     buf.readEnumConstant(IllustrationAnchor.class),
-                    buf.readInt(),
-                    buf.readInt(),
-                    buf.readInt(),
-                    buf.readInt(),
-                    buf.readInt(),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
                     buf.readFloat(),
                     new StareTarget(buf),
-                    buf.readOptional(PacketByteBuf::readNbt)
+                    buf.readOptional(IllustrationDataSync::readData)
             ),
             (buf, i) -> {
                 buf.writeIdentifier(i.id());
                 buf.writeEnumConstant(i.anchor());
-                buf.writeInt(i.x());
-                buf.writeInt(i.y());
-                buf.writeInt(i.width());
-                buf.writeInt(i.height());
-                buf.writeInt(i.entitySize());
+                OptionalSerialization.writeSignedVarInt(buf, i.x());
+                OptionalSerialization.writeSignedVarInt(buf, i.y());
+                OptionalSerialization.writeSignedVarInt(buf, i.width());
+                OptionalSerialization.writeSignedVarInt(buf, i.height());
+                OptionalSerialization.writeSignedVarInt(buf, i.entitySize());
                 buf.writeFloat(i.yOffset());
                 StareTarget.writeToPacket(buf, i.stareAt());
-                buf.writeOptional(i.data(), PacketByteBuf::writeNbt);
+                buf.writeOptional(i.data(), IllustrationDataSync::writeData);
             }
     );
 
@@ -57,7 +57,7 @@ public class DialogueIllustrationSelectorEntity implements DialogueIllustrationE
     private static final int NO_ENTITY_FOUND = -1;
 
     private final Spec spec;
-    private int selectedEntityId;
+    private final int selectedEntityId;
 
     public DialogueIllustrationSelectorEntity(Spec spec) {
         this(spec, NO_ENTITY_FOUND);
@@ -129,7 +129,8 @@ public class DialogueIllustrationSelectorEntity implements DialogueIllustrationE
             EntitySelector entitySelector = new EntitySelectorReader(new StringReader(spec().selector())).read();
             Entity e = entitySelector.getEntity(source);
             if (e instanceof LivingEntity living) {
-                this.selectedEntityId = living.getId();
+                // The template is shared by every player, the selected entity goes in a copy
+                return new DialogueIllustrationSelectorEntity(this.spec, living.getId());
             }
         }
         return this;
@@ -173,11 +174,11 @@ public class DialogueIllustrationSelectorEntity implements DialogueIllustrationE
             this(
                     buf.readString(),
                     buf.readEnumConstant(IllustrationAnchor.class),
-                    buf.readInt(),
-                    buf.readInt(),
-                    buf.readInt(),
-                    buf.readInt(),
-                    buf.readInt(),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
+                    OptionalSerialization.readSignedVarInt(buf),
                     buf.readFloat(),
                     new StareTarget(buf)
             );
@@ -186,11 +187,11 @@ public class DialogueIllustrationSelectorEntity implements DialogueIllustrationE
         public void writeToBuffer(PacketByteBuf buf) {
             buf.writeString(selector());
             buf.writeEnumConstant(anchor());
-            buf.writeInt(x());
-            buf.writeInt(y());
-            buf.writeInt(width());
-            buf.writeInt(height());
-            buf.writeInt(entitySize());
+            OptionalSerialization.writeSignedVarInt(buf, x());
+            OptionalSerialization.writeSignedVarInt(buf, y());
+            OptionalSerialization.writeSignedVarInt(buf, width());
+            OptionalSerialization.writeSignedVarInt(buf, height());
+            OptionalSerialization.writeSignedVarInt(buf, entitySize());
             buf.writeFloat(yOffset());
             StareTarget.writeToPacket(buf, stareAt());
         }
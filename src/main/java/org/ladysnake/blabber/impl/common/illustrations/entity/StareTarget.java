@@ -37,16 +37,24 @@ public record StareTarget(Optional<IllustrationAnchor> anchor, OptionalInt x,
     public static final StareTarget FOLLOW_MOUSE = new StareTarget(Optional.empty(), OptionalInt.empty(), OptionalInt.empty());
 
     public StareTarget(PacketByteBuf buf) {
+        this(OptionalSerialization.readOptionalInts(buf, 3));
+    }
+
+    private StareTarget(OptionalInt[] values) {
+        // The anchor shares the presence bitmask, its ordinal stands in for the value
         this(
-                buf.readOptional(b -> b.readEnumConstant(IllustrationAnchor.class)),
-                OptionalSerialization.readOptionalInt(buf),
-                OptionalSerialization.readOptionalInt(buf)
+                values[0].isPresent() ? Optional.of(IllustrationAnchor.values()[values[0].getAsInt()]) : Optional.empty(),
+                values[1],
+                values[2]
         );
     }
 
     public static void writeToPacket(PacketByteBuf buf, StareTarget stareTarget) {
-        buf.writeOptional(stareTarget.anchor(), PacketByteBuf::writeEnumConstant);
-        OptionalSerialization.writeOptionalInt(buf, stareTarget.x());
-        OptionalSerialization.writeOptionalInt(buf, stareTarget.y());
+        OptionalSerialization.writeOptionalInts(
+                buf,
+                stareTarget.anchor().map(anchor -> OptionalInt.of(anchor.ordinal())).orElseGet(OptionalInt::empty),
+                stareTarget.x(),
+                stareTarget.y()
+        );
     }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.machine;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.loot.context.LootContext;
+import net.minecraft.server.network.ServerPlayerEntity;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Everything choice conditions may get tested against.
+ *
+ * <p>Implementations are meant to be reused across condition updates,
+ * and to only build a {@link LootContext} if a loot predicate actually asks for it.
+ */
+public interface ChoiceConditionContext {
+    ServerPlayerEntity getPlayer();
+
+    @Nullable Entity getInterlocutor();
+
+    LootContext getLootContext();
+}
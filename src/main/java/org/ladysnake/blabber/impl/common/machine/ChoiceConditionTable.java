@@ -0,0 +1,186 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.machine;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.loot.condition.LootCondition;
+import net.minecraft.util.Identifier;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.api.DialogueCondition;
+import org.ladysnake.blabber.impl.common.InstancedDialogueCondition;
+import org.ladysnake.blabber.impl.common.model.DialogueChoice;
+import org.ladysnake.blabber.impl.common.model.DialogueChoiceCondition;
+import org.ladysnake.blabber.impl.common.model.DialogueState;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.validation.ValidationResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The predicates referenced by a dialogue template's choices, resolved once per datapack reload.
+ *
+ * <p>Every choice of every state gets a slot in a single flat array, starting at the {@linkplain #getOffset(String) offset}
+ * of its state. Each slot holds the index of the choice's predicate, so that choices sharing the same predicate
+ * {@link Identifier} (or equal native {@link DialogueCondition}s) also share the same index. Unconditional choices
+ * and choices referencing a missing predicate hold {@link #NO_PREDICATE}.
+ *
+ * <p>Each predicate index maps to either a loot predicate or a native condition.
+ */
+public final class ChoiceConditionTable {
+    public static final int NO_OFFSET = -1;
+    public static final int NO_PREDICATE = -1;
+    /**
+     * Marks predicate ids that were already reported as missing while resolving a table
+     */
+    private static final int MISSING_PREDICATE = -2;
+    public static final ChoiceConditionTable EMPTY = new ChoiceConditionTable(new int[0], new Identifier[0], new LootCondition[0], new DialogueCondition[0], new Object2IntOpenHashMap<>(0), ConditionDependencies.NONE);
+
+    private final int[] predicateIndices;
+    private final Identifier[] predicateIds;
+    private final @Nullable LootCondition[] predicates;
+    private final @Nullable DialogueCondition[] nativeConditions;
+    private final Object2IntMap<String> stateOffsets;
+    private final int dependencies;
+
+    private ChoiceConditionTable(int[] predicateIndices, Identifier[] predicateIds, @Nullable LootCondition[] predicates, @Nullable DialogueCondition[] nativeConditions, Object2IntMap<String> stateOffsets, int dependencies) {
+        this.predicateIndices = predicateIndices;
+        this.predicateIds = predicateIds;
+        this.predicates = predicates;
+        this.nativeConditions = nativeConditions;
+        this.stateOffsets = stateOffsets;
+        this.stateOffsets.defaultReturnValue(NO_OFFSET);
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * @param predicates a lookup for loot predicates by id, typically {@link net.minecraft.loot.condition.LootConditionManager#get(Identifier)}
+     */
+    public static ChoiceConditionTable resolve(DialogueTemplate template, Function<Identifier, @Nullable LootCondition> predicates, Consumer<ValidationResult.Error> errorReporter) {
+        Object2IntMap<String> stateOffsets = new Object2IntOpenHashMap<>(template.states().size());
+        int size = 0;
+        for (Map.Entry<String, DialogueState> state : template.states().entrySet()) {
+            stateOffsets.put(state.getKey(), size);
+            size += state.getValue().choices().size();
+        }
+
+        int[] predicateIndices = new int[size];
+        Arrays.fill(predicateIndices, NO_PREDICATE);
+        // Keyed by either predicate Identifier or native condition
+        Object2IntMap<Object> knownPredicates = new Object2IntOpenHashMap<>();
+        knownPredicates.defaultReturnValue(NO_PREDICATE);
+        List<Identifier> predicateIds = new ArrayList<>();
+        List<LootCondition> resolvedPredicates = new ArrayList<>();
+        List<DialogueCondition> nativeConditions = new ArrayList<>();
+        int dependencies = ConditionDependencies.NONE;
+        for (Map.Entry<String, DialogueState> state : template.states().entrySet()) {
+            int offset = stateOffsets.getInt(state.getKey());
+            List<DialogueChoice> choices = state.getValue().choices();
+            for (int i = 0; i < choices.size(); i++) {
+                Optional<DialogueChoiceCondition> condition = choices.get(i).condition();
+                if (condition.isEmpty()) continue;
+
+                Object key = condition.get().condition().<Object>map(InstancedDialogueCondition::condition).orElseGet(() -> condition.get().predicate().orElseThrow());
+                int predicateIndex = knownPredicates.getInt(key);
+                if (predicateIndex == MISSING_PREDICATE) continue;
+                if (predicateIndex == NO_PREDICATE) {
+                    if (condition.get().condition().isPresent()) {
+                        InstancedDialogueCondition<?> nativeCondition = condition.get().condition().get();
+                        predicateIds.add(nativeCondition.getTypeId());
+                        resolvedPredicates.add(null);
+                        nativeConditions.add(nativeCondition.condition());
+                        dependencies |= ConditionDependencies.classify(nativeCondition.condition());
+                    } else {
+                        Identifier predicateId = condition.get().predicate().orElseThrow();
+                        LootCondition predicate = predicates.apply(predicateId);
+                        if (predicate == null) {
+                            errorReporter.accept(new ValidationResult.Error.NonexistentPredicate(state.getKey(), predicateId));
+                            // Only look it up and report it once, however many choices reference it
+                            knownPredicates.put(key, MISSING_PREDICATE);
+                            continue;
+                        }
+                        predicateIds.add(predicateId);
+                        resolvedPredicates.add(predicate);
+                        nativeConditions.add(null);
+                        dependencies |= ConditionDependencies.classify(predicate);
+                    }
+                    predicateIndex = predicateIds.size() - 1;
+                    knownPredicates.put(key, predicateIndex);
+                }
+                predicateIndices[offset + i] = predicateIndex;
+            }
+        }
+
+        return new ChoiceConditionTable(predicateIndices, predicateIds.toArray(Identifier[]::new), resolvedPredicates.toArray(LootCondition[]::new), nativeConditions.toArray(DialogueCondition[]::new), stateOffsets, dependencies);
+    }
+
+    /**
+     * @return the index of the given state's first choice in this table, or {@link #NO_OFFSET} if the state is unknown
+     */
+    public int getOffset(String stateKey) {
+        return this.stateOffsets.getInt(stateKey);
+    }
+
+    /**
+     * @return the index of the predicate for the choice at the given slot, or {@link #NO_PREDICATE}
+     */
+    public int getPredicateIndex(int slot) {
+        return this.predicateIndices[slot];
+    }
+
+    /**
+     * @return the number of distinct predicates referenced by the dialogue
+     */
+    public int getPredicateCount() {
+        return this.predicateIds.length;
+    }
+
+    /**
+     * @return the {@link ConditionDependencies} flags of every predicate in this table combined
+     */
+    public int getDependencies() {
+        return this.dependencies;
+    }
+
+    /**
+     * @return the loot predicate at the given index, or {@code null} if it is a {@linkplain #getNativeCondition(int) native condition}
+     */
+    public @Nullable LootCondition getPredicate(int predicateIndex) {
+        return this.predicates[predicateIndex];
+    }
+
+    /**
+     * @return the native condition at the given index, or {@code null} if it is a {@linkplain #getPredicate(int) loot predicate}
+     */
+    public @Nullable DialogueCondition getNativeCondition(int predicateIndex) {
+        return this.nativeConditions[predicateIndex];
+    }
+
+    /**
+     * @return the predicate's id, or the native condition's type id
+     */
+    public Identifier getPredicateId(int predicateIndex) {
+        return this.predicateIds[predicateIndex];
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.machine;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import net.minecraft.loot.LootGsons;
+import net.minecraft.loot.condition.LootCondition;
+import net.minecraft.util.JsonHelper;
+import org.ladysnake.blabber.api.DialogueCondition;
+import org.ladysnake.blabber.impl.common.conditions.HealthCondition;
+import org.ladysnake.blabber.impl.common.conditions.HoldingItemCondition;
+
+import java.util.Map;
+
+/**
+ * Bit flags describing which parts of the player's state a choice condition depends on.
+ *
+ * <p>Loot predicates are classified from their JSON form, native conditions from their type. Anything that is not understood,
+ * or that depends on something changing continuously (position, time, randomness...), is {@link #UNKNOWN}.
+ */
+public final class ConditionDependencies {
+    public static final int NONE = 0;
+    public static final int INVENTORY = 1;
+    public static final int HEALTH = 1 << 1;
+    public static final int ADVANCEMENTS = 1 << 2;
+    public static final int DIMENSION = 1 << 3;
+    public static final int UNKNOWN = 1 << 4;
+
+    private static final Gson GSON = LootGsons.getConditionGsonBuilder().create();
+
+    private ConditionDependencies() {
+    }
+
+    public static int classify(LootCondition condition) {
+        try {
+            return classifyCondition(GSON.toJsonTree(condition, LootCondition.class));
+        } catch (RuntimeException e) {
+            return UNKNOWN;
+        }
+    }
+
+    public static int classify(DialogueCondition condition) {
+        if (condition instanceof HoldingItemCondition) return INVENTORY;
+        if (condition instanceof HealthCondition) return HEALTH;
+        return UNKNOWN;
+    }
+
+    private static int classifyCondition(JsonElement json) {
+        if (!json.isJsonObject()) return UNKNOWN;
+        JsonObject condition = json.getAsJsonObject();
+        return switch (JsonHelper.getString(condition, "condition", "")) {
+            case "minecraft:inverted" -> classifyCondition(condition.get("term"));
+            case "minecraft:alternative" -> {
+                int dependencies = NONE;
+                for (JsonElement term : JsonHelper.getArray(condition, "terms")) {
+                    dependencies |= classifyCondition(term);
+                }
+                yield dependencies;
+            }
+            case "minecraft:entity_properties" -> "this".equals(JsonHelper.getString(condition, "entity", ""))
+                    ? classifyEntity(condition.get("predicate"))
+                    : UNKNOWN;
+            default -> UNKNOWN;
+        };
+    }
+
+    private static int classifyEntity(JsonElement json) {
+        if (isUnconstrained(json)) return NONE;
+        if (!json.isJsonObject()) return UNKNOWN;
+        int dependencies = NONE;
+        for (Map.Entry<String, JsonElement> property : json.getAsJsonObject().entrySet()) {
+            if (isUnconstrained(property.getValue())) continue;
+            dependencies |= switch (property.getKey()) {
+                case "type" -> NONE;    // a player stays a player
+                case "equipment" -> INVENTORY;
+                case "location" -> classifyLocation(property.getValue());
+                case "player", "type_specific" -> classifyPlayer(property.getValue());
+                default -> UNKNOWN;
+            };
+        }
+        return dependencies;
+    }
+
+    private static int classifyLocation(JsonElement json) {
+        if (!json.isJsonObject()) return UNKNOWN;
+        int dependencies = NONE;
+        for (Map.Entry<String, JsonElement> property : json.getAsJsonObject().entrySet()) {
+            if (isUnconstrained(property.getValue())) continue;
+            dependencies |= property.getKey().equals("dimension") ? DIMENSION : UNKNOWN;
+        }
+        return dependencies;
+    }
+
+    private static int classifyPlayer(JsonElement json) {
+        if (!json.isJsonObject()) return UNKNOWN;
+        int dependencies = NONE;
+        for (Map.Entry<String, JsonElement> property : json.getAsJsonObject().entrySet()) {
+            if (isUnconstrained(property.getValue())) continue;
+            dependencies |= switch (property.getKey()) {
+                case "type" -> NONE;
+                case "advancements" -> ADVANCEMENTS;
+                default -> UNKNOWN;
+            };
+        }
+        return dependencies;
+    }
+
+    private static boolean isUnconstrained(JsonElement json) {
+        return json == null
+                || json.isJsonNull()
+                || (json.isJsonObject() && json.getAsJsonObject().size() == 0)
+                || (json.isJsonArray() && json.getAsJsonArray().size() == 0);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.machine;
+
+import net.minecraft.network.PacketByteBuf;
+
+import java.util.BitSet;
+
+/**
+ * Availability of the conditional choices in a single dialogue state, indexed by choice
+ */
+final class ConditionalState {
+    /**
+     * Index of the state in its dialogue, as sent over the network
+     */
+    private final int stateIndex;
+    /**
+     * Choices that have a condition attached
+     */
+    private final BitSet conditional;
+    /**
+     * Choices which condition was fulfilled the last time it got tested
+     */
+    private final BitSet available;
+    /**
+     * Choices which availability changed since the last delta got written
+     */
+    private final BitSet changed;
+    /**
+     * Scratch space for writing deltas
+     */
+    private final BitSet changedValues;
+    /**
+     * Index of this state's first choice in the dialogue's {@link ChoiceConditionTable}
+     */
+    private final int conditionOffset;
+    /**
+     * The last evaluation pass in which this state's conditions got tested
+     */
+    private int evaluationPass = -1;
+
+    ConditionalState(int stateIndex, BitSet conditional, int conditionOffset) {
+        this.stateIndex = stateIndex;
+        this.conditional = conditional;
+        this.conditionOffset = conditionOffset;
+        this.available = new BitSet(conditional.length());
+        this.changed = new BitSet(conditional.length());
+        this.changedValues = new BitSet(conditional.length());
+    }
+
+    int stateIndex() {
+        return this.stateIndex;
+    }
+
+    BitSet conditional() {
+        return this.conditional;
+    }
+
+    int conditionOffset() {
+        return this.conditionOffset;
+    }
+
+    /**
+     * @return {@code false} if this state was already evaluated during the given pass
+     */
+    boolean markEvaluated(int pass) {
+        if (this.evaluationPass == pass) return false;
+        this.evaluationPass = pass;
+        return true;
+    }
+
+    boolean isAvailable(int choice) {
+        return !this.conditional.get(choice) || this.available.get(choice);
+    }
+
+    /**
+     * @return {@code true} if the availability of the choice changed
+     */
+    boolean set(int choice, boolean available) {
+        if (this.available.get(choice) != available) {
+            this.available.set(choice, available);
+            this.changed.flip(choice);
+            return true;
+        }
+        return false;
+    }
+
+    boolean hasChanges() {
+        return !this.changed.isEmpty();
+    }
+
+    void writeDelta(PacketByteBuf buf) {
+        buf.writeBitSet(this.changed);
+        this.changedValues.clear();
+        this.changedValues.or(this.available);
+        this.changedValues.and(this.changed);
+        buf.writeBitSet(this.changedValues);
+        this.changed.clear();
+    }
+
+    void applyDelta(PacketByteBuf buf) {
+        BitSet changed = buf.readBitSet();
+        BitSet values = buf.readBitSet();
+        changed.and(this.conditional);
+        this.available.andNot(changed);
+        values.and(changed);
+        this.available.or(values);
+    }
+
+    /**
+     * Skips a delta meant for a state that is not loaded yet
+     */
+    static void skipDelta(PacketByteBuf buf) {
+        buf.readBitSet();
+        buf.readBitSet();
+    }
+
+    /**
+     * Writes the availability of every choice, which also covers any change waiting for the next delta
+     */
+    void writeFull(PacketByteBuf buf) {
+        buf.writeBitSet(this.available);
+        this.changed.clear();
+    }
+
+    void applyFull(PacketByteBuf buf) {
+        BitSet values = buf.readBitSet();
+        values.and(this.conditional);
+        this.available.clear();
+        this.available.or(values);
+    }
+
+    /**
+     * Skips a full update meant for a state that is not loaded yet
+     */
+    static void skipFull(PacketByteBuf buf) {
+        buf.readBitSet();
+    }
+}
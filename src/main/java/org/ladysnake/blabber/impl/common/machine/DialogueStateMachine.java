@@ -17,24 +17,23 @@
  */
 package org.ladysnake.blabber.impl.common.machine;
 
+import com.demonwav.mcdev.annotations.CheckEnv;
+import com.demonwav.mcdev.annotations.Env;
 import com.google.common.collect.ImmutableList;
-import com.mojang.brigadier.exceptions.CommandSyntaxException;
-import com.mojang.brigadier.exceptions.DynamicCommandExceptionType;
-import it.unimi.dsi.fastutil.ints.Int2BooleanMap;
-import it.unimi.dsi.fastutil.ints.Int2BooleanMaps;
-import it.unimi.dsi.fastutil.ints.Int2BooleanOpenHashMap;
-import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.minecraft.loot.condition.LootCondition;
 import net.minecraft.loot.context.LootContext;
 import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.text.Text;
 import net.minecraft.util.Identifier;
-import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.ladysnake.blabber.Blabber;
 import org.ladysnake.blabber.api.DialogueActionV2;
 import org.ladysnake.blabber.api.illustration.DialogueIllustration;
 import org.ladysnake.blabber.api.layout.DialogueLayout;
+import org.ladysnake.blabber.impl.common.DialogueTemplateSync;
 import org.ladysnake.blabber.impl.common.InstancedDialogueAction;
 import org.ladysnake.blabber.impl.common.model.*;
 
@@ -43,49 +42,197 @@ import java.util.function.Consumer;
 import java.util.stream.IntStream;
 
 public final class DialogueStateMachine {
-    private static final DynamicCommandExceptionType INVALID_PREDICATE_EXCEPTION = new DynamicCommandExceptionType(id -> Text.translatable("blabber:commands.dialogue.start.predicate.invalid", String.valueOf(id)));
+    /**
+     * Stands in for states of a streamed template that the client did not receive yet
+     */
+    private static final DialogueState LOADING_STATE = new DialogueState(List.of(), List.of(), List.of(), Optional.empty(), ChoiceResult.DEFAULT);
 
     private final Identifier id;
-    private final DialogueTemplate template;
-    private final Map<String, Int2BooleanMap> conditionalChoices;
+    /**
+     * Only ever replaced on the client, as the states of a streamed template get loaded
+     */
+    private DialogueTemplate template;
+    private final ChoiceConditionTable conditionTable;
+    private Map<String, ConditionalState> conditionalChoices;
+    /**
+     * Same values as {@link #conditionalChoices}, for iterating without allocating
+     */
+    private ConditionalState[] conditionalStates;
+    /**
+     * Keys of every state in lexicographic order, which both sides can work out from the template alone.
+     * States are referred to by their position in this array over the network.
+     */
+    private final String[] stateKeys;
+    private final Object2IntMap<String> stateIndices;
+    /**
+     * Same values as {@link #conditionalChoices}, by state index
+     */
+    private @Nullable ConditionalState[] conditionalStatesByIndex;
+    /**
+     * Incremented on every scoped update, so that each state gets evaluated at most once per update
+     */
+    private int evaluationPass;
+    /**
+     * The context used by the last condition update, so that states entered between two updates can be evaluated lazily.
+     * Always {@code null} on the client.
+     */
+    private @Nullable ChoiceConditionContext conditionContext;
+    /**
+     * Predicates of the {@link #conditionTable} already tested in the current evaluation pass, and their results
+     */
+    private final BitSet testedPredicates;
+    private final BitSet predicateResults;
+    /**
+     * Number of availability deltas sent to (or received by) the client for this dialogue session
+     */
+    private int availabilitySequence;
+    /**
+     * Number of predicate tests run for this dialogue session
+     */
+    private int conditionEvaluations;
+    /**
+     * Number of predicate tests skipped because the same predicate had already been tested in the same pass
+     */
+    private int savedConditionEvaluations;
+    private boolean awaitingFullAvailabilityUpdate;
+    /**
+     * Whether this dialogue is a placeholder, waiting for the server to send the actual template
+     */
+    private final boolean awaitingTemplate;
     private @Nullable String currentStateKey;
+    private int currentStateIndex;
     private ImmutableList<AvailableChoice> availableChoices = ImmutableList.of();
     private int textPicked=-2;
     private @Nullable String stateLog;
 
-    public DialogueStateMachine(Identifier id, DialogueTemplate template, @Nullable String start) {
+    /**
+     * @param conditionTable the predicates resolved for the template, or {@link ChoiceConditionTable#EMPTY} if conditions are never evaluated
+     */
+    public DialogueStateMachine(Identifier id, DialogueTemplate template, ChoiceConditionTable conditionTable, @Nullable String start) {
+        this(id, template, sortedStateKeys(template), conditionTable, false);
+        this.selectState(start == null ? template.start() : start);
+    }
+
+    /**
+     * @param stateKeys the keys of every state in the dialogue, in lexicographic order, even those the template is still missing
+     */
+    private DialogueStateMachine(Identifier id, DialogueTemplate template, String[] stateKeys, ChoiceConditionTable conditionTable, boolean awaitingTemplate) {
         this.template = template;
+        this.awaitingTemplate = awaitingTemplate;
         this.id = id;
-        this.conditionalChoices = gatherConditionalChoices(template);
-        this.selectState(start == null ? template.start() : start);
+        this.conditionTable = conditionTable;
+        this.stateKeys = stateKeys;
+        this.stateIndices = new Object2IntOpenHashMap<>(this.stateKeys.length);
+        this.stateIndices.defaultReturnValue(-1);
+        for (int i = 0; i < this.stateKeys.length; i++) {
+            this.stateIndices.put(this.stateKeys[i], i);
+        }
+        this.conditionalChoices = gatherConditionalChoices(template, conditionTable, this.stateIndices);
+        this.indexConditionalStates();
+        this.testedPredicates = new BitSet(conditionTable.getPredicateCount());
+        this.predicateResults = new BitSet(conditionTable.getPredicateCount());
     }
 
     public DialogueStateMachine(PacketByteBuf buf) {
-        this(buf.readIdentifier(), new DialogueTemplate(buf), buf.readString());
+        this(buf.readIdentifier(), buf);
+    }
+
+    private DialogueStateMachine(Identifier id, PacketByteBuf buf) {
+        this(id, DialogueTemplateSync.readTemplate(id, buf), buf);
     }
 
-    private static Map<String, Int2BooleanMap> gatherConditionalChoices(DialogueTemplate template) {
-        Map<String, Int2BooleanMap> conditionalChoices = new HashMap<>();
+    private DialogueStateMachine(Identifier id, Optional<DialogueTemplateSync.ReceivedTemplate> received, PacketByteBuf buf) {
+        this(id, received.orElseGet(DialogueStateMachine::placeholder), received.isEmpty());
+        int state = buf.readVarInt();
+        this.selectState(this.awaitingTemplate ? this.template.start() : this.getStateKey(state));
+    }
+
+    private DialogueStateMachine(Identifier id, DialogueTemplateSync.ReceivedTemplate received, boolean awaitingTemplate) {
+        this(id, received.template(), received.stateKeys(), ChoiceConditionTable.EMPTY, awaitingTemplate);
+    }
+
+    private static DialogueTemplateSync.ReceivedTemplate placeholder() {
+        DialogueTemplate placeholder = DialogueTemplate.placeholder();
+        return new DialogueTemplateSync.ReceivedTemplate(placeholder, sortedStateKeys(placeholder));
+    }
+
+    /**
+     * @return the keys of every state in the template, in the order used to refer to states over the network
+     */
+    public static String[] sortedStateKeys(DialogueTemplate template) {
+        String[] stateKeys = template.states().keySet().toArray(String[]::new);
+        Arrays.sort(stateKeys);
+        return stateKeys;
+    }
+
+    private void indexConditionalStates() {
+        this.conditionalStates = this.conditionalChoices.values().toArray(ConditionalState[]::new);
+        this.conditionalStatesByIndex = new ConditionalState[this.stateKeys.length];
+        for (ConditionalState conditionalState : this.conditionalStates) {
+            this.conditionalStatesByIndex[conditionalState.stateIndex()] = conditionalState;
+        }
+    }
+
+    /**
+     * Adds states of a streamed template as they arrive.
+     * States and illustrations that were already known, e.g. because they got personalized for the player, are kept.
+     *
+     * @return {@code true} if some of the new states have conditional choices, which availability must be resynchronized
+     */
+    @CheckEnv(Env.CLIENT)
+    public boolean loadStates(Map<String, DialogueState> states, Map<String, DialogueIllustration> illustrations) {
+        Map<String, DialogueState> loadedStates = new HashMap<>(this.getStates());
+        Map<String, DialogueIllustration> loadedIllustrations = new HashMap<>(this.getIllustrations());
+        states.forEach(loadedStates::putIfAbsent);
+        illustrations.forEach(loadedIllustrations::putIfAbsent);
+        boolean currentStateLoaded = this.currentStateKey != null && !this.getStates().containsKey(this.currentStateKey) && loadedStates.containsKey(this.currentStateKey);
+        this.template = new DialogueTemplate(this.template.start(), this.template.unskippable(), loadedStates, loadedIllustrations, this.template.layout(), this.template.conditionRefreshTicks());
+
+        Map<String, ConditionalState> conditionalChoices = gatherConditionalChoices(this.template, this.conditionTable, this.stateIndices);
+        // Keep the availability received so far
+        conditionalChoices.putAll(this.conditionalChoices);
+        boolean newConditionalStates = conditionalChoices.size() != this.conditionalChoices.size();
+        this.conditionalChoices = conditionalChoices;
+        this.indexConditionalStates();
+        if (currentStateLoaded) {
+            this.availableChoices = this.rebuildAvailableChoices();
+        }
+        return newConditionalStates;
+    }
+
+    /**
+     * @return {@code true} if this dialogue's template is being streamed, and some of its states are not available yet
+     */
+    public boolean isLoadingStates() {
+        return this.getStates().size() < this.stateKeys.length;
+    }
+
+    private static Map<String, ConditionalState> gatherConditionalChoices(DialogueTemplate template, ChoiceConditionTable conditionTable, Object2IntMap<String> stateIndices) {
+        Map<String, ConditionalState> conditionalChoices = new HashMap<>();
         for (Map.Entry<String, DialogueState> entry : template.states().entrySet()) {
             List<DialogueChoice> choices = entry.getValue().choices();
-            Int2BooleanMap m = new Int2BooleanOpenHashMap();
+            BitSet conditional = new BitSet(choices.size());
             for (int i = 0; i < choices.size(); i++) {
                 DialogueChoice choice = choices.get(i);
                 if (choice.condition().isPresent()) {
-                    m.put(i, false);
+                    conditional.set(i);
                 }
             }
-            if (!m.isEmpty()) {
-                conditionalChoices.put(entry.getKey(), m);
+            if (!conditional.isEmpty()) {
+                conditionalChoices.put(entry.getKey(), new ConditionalState(stateIndices.getInt(entry.getKey()), conditional, conditionTable.getOffset(entry.getKey())));
             }
         }
         return conditionalChoices;
     }
 
-    public static void writeToPacket(PacketByteBuf buf, DialogueStateMachine dialogue) {
+    /**
+     * @param template  the dialogue's template before text parsing, as registered in the {@link org.ladysnake.blabber.impl.common.DialogueRegistry}
+     * @param overrides the parts of this dialogue's template that got parsed for the player, as encoded by {@link DialogueTemplateSync#encodeOverrides}
+     */
+    public static void writeToPacket(PacketByteBuf buf, DialogueStateMachine dialogue, ServerPlayerEntity player, DialogueTemplate template, byte[] overrides) {
         buf.writeIdentifier(dialogue.getId());
-        DialogueTemplate.writeToPacket(buf, dialogue.template);
-        buf.writeString(dialogue.getCurrentStateKey());
+        DialogueTemplateSync.writeTemplate(buf, player, dialogue.getId(), template, overrides, dialogue.getCurrentStateKey());
+        buf.writeVarInt(dialogue.getCurrentStateIndex());
     }
 
     private static boolean runTest(LootCondition condition, LootContext context) {
@@ -102,7 +249,7 @@ public final class DialogueStateMachine {
     }
 
     private DialogueState getCurrentState() {
-        return getStates().get(this.getCurrentStateKey());
+        return getStates().getOrDefault(this.getCurrentStateKey(), LOADING_STATE);
     }
 
     public Identifier getId() {
@@ -150,54 +297,211 @@ public final class DialogueStateMachine {
         return this.availableChoices;
     }
 
+    /**
+     * @return {@code true} if the client did not have this dialogue's template, and is showing a placeholder until the server reopens it
+     */
+    public boolean isAwaitingTemplate() {
+        return this.awaitingTemplate;
+    }
+
     public boolean hasConditions() {
         return !this.conditionalChoices.isEmpty();
     }
 
-    public @NotNull PacketByteBuf updateConditions(LootContext context) throws CommandSyntaxException {
-        Map<String, Int2BooleanMap> updatedChoice = new HashMap<>();
-        for (Map.Entry<String, Int2BooleanMap> conditionalState : this.conditionalChoices.entrySet()) {
-            List<DialogueChoice> availableChoices = getStates().get(conditionalState.getKey()).choices();
-            for (Int2BooleanMap.Entry conditionalChoice : conditionalState.getValue().int2BooleanEntrySet()) {
-                Identifier predicateId = availableChoices.get(conditionalChoice.getIntKey()).condition().orElseThrow().predicate();
-                LootCondition condition = context.getWorld().getServer().getPredicateManager().get(predicateId);
-                if (condition == null) throw INVALID_PREDICATE_EXCEPTION.create(predicateId);
-                boolean testResult = runTest(condition, context);
-                if (testResult != conditionalChoice.setValue(testResult)) {
-                    updatedChoice.putIfAbsent(conditionalState.getKey(), conditionalState.getValue());
-                    updatedChoice.putIfAbsent(conditionalState.getKey(), new Int2BooleanOpenHashMap()).put(conditionalChoice.getIntKey(), testResult);
-                }
+    /**
+     * @return the {@link ConditionDependencies} flags of every predicate this dialogue may test
+     */
+    public int getConditionDependencies() {
+        return this.conditionTable.getDependencies();
+    }
+
+    /**
+     * Tests the conditions of the current state and of every state reachable from it in a single choice.
+     *
+     * <p>Conditions of states further away are left alone until they enter that scope,
+     * or until they get {@linkplain #selectState(String) selected} directly.
+     *
+     * @return {@code true} if some availability changes are waiting to be {@linkplain #writeAvailabilityDelta(PacketByteBuf) sent}
+     */
+    public boolean updateConditions(ChoiceConditionContext context) {
+        this.conditionContext = context;
+        this.startEvaluationPass();
+        boolean currentStateChanged = this.evaluateConditions(this.getCurrentStateKey(), context);
+        // Indexed loop, this runs every tick for every session
+        List<DialogueChoice> choices = this.getCurrentState().choices();
+        for (int i = 0; i < choices.size(); i++) {
+            this.evaluateConditions(choices.get(i).next(), context);
+        }
+        if (currentStateChanged) {
+            this.availableChoices = this.rebuildAvailableChoices();
+        }
+        return this.hasPendingAvailabilityChanges();
+    }
+
+    /**
+     * @return {@code true} if the availability of any choice in the given state changed
+     */
+    private boolean evaluateConditions(String stateKey, ChoiceConditionContext context) {
+        ConditionalState conditionalState = this.conditionalChoices.get(stateKey);
+        if (conditionalState == null || conditionalState.conditionOffset() == ChoiceConditionTable.NO_OFFSET || !conditionalState.markEvaluated(this.evaluationPass)) return false;
+
+        boolean changed = false;
+        int offset = conditionalState.conditionOffset();
+        BitSet conditional = conditionalState.conditional();
+        for (int i = conditional.nextSetBit(0); i >= 0; i = conditional.nextSetBit(i + 1)) {
+            // Missing predicates were reported when the table got resolved, the choice simply stays locked
+            int predicate = this.conditionTable.getPredicateIndex(offset + i);
+            changed |= conditionalState.set(i, predicate != ChoiceConditionTable.NO_PREDICATE && this.testPredicate(predicate, context));
+        }
+        return changed;
+    }
+
+    private void startEvaluationPass() {
+        this.evaluationPass++;
+        this.testedPredicates.clear();
+    }
+
+    /**
+     * Tests a predicate at most once per evaluation pass, however many choices reference it
+     */
+    private boolean testPredicate(int predicate, ChoiceConditionContext context) {
+        if (this.testedPredicates.get(predicate)) {
+            this.savedConditionEvaluations++;
+            return this.predicateResults.get(predicate);
+        }
+        boolean timed = PredicateTiming.isEnabled();
+        long start = timed ? System.nanoTime() : 0L;
+        LootCondition lootCondition = this.conditionTable.getPredicate(predicate);
+        // Native conditions skip the loot context entirely
+        boolean result = lootCondition != null
+                ? runTest(lootCondition, context.getLootContext())
+                : Objects.requireNonNull(this.conditionTable.getNativeCondition(predicate)).test(context.getPlayer(), context.getInterlocutor());
+        if (timed) PredicateTiming.get(this.conditionTable.getPredicateId(predicate)).record(System.nanoTime() - start);
+        this.conditionEvaluations++;
+        this.testedPredicates.set(predicate);
+        this.predicateResults.set(predicate, result);
+        return result;
+    }
+
+    /**
+     * @return the number of predicate tests run since this dialogue started
+     */
+    public int getConditionEvaluations() {
+        return this.conditionEvaluations;
+    }
+
+    /**
+     * @return the number of predicate tests avoided since this dialogue started, thanks to choices sharing predicates
+     */
+    public int getSavedConditionEvaluations() {
+        return this.savedConditionEvaluations;
+    }
+
+    private boolean hasPendingAvailabilityChanges() {
+        for (ConditionalState conditionalState : this.conditionalStates) {
+            if (conditionalState.hasChanges()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes every availability change since the last delta, tagged with the next sequence number
+     */
+    public void writeAvailabilityDelta(PacketByteBuf buf) {
+        buf.writeVarInt(++this.availabilitySequence);
+        int changedStates = 0;
+        for (ConditionalState conditionalState : this.conditionalStates) {
+            if (conditionalState.hasChanges()) changedStates++;
+        }
+        buf.writeVarInt(changedStates);
+        for (ConditionalState conditionalState : this.conditionalStates) {
+            if (conditionalState.hasChanges()) {
+                buf.writeVarInt(conditionalState.stateIndex());
+                conditionalState.writeDelta(buf);
+            }
+        }
+    }
+
+    /**
+     * @return {@code false} if a delta went missing, in which case the client should request a full update
+     */
+    public boolean applyAvailabilityDelta(PacketByteBuf payload) {
+        int sequence = payload.readVarInt();
+        if (sequence != this.availabilitySequence + 1) {
+            // Only ask once, the full update will catch up with everything sent in the meantime
+            boolean shouldRequest = !this.awaitingFullAvailabilityUpdate;
+            this.awaitingFullAvailabilityUpdate = true;
+            return !shouldRequest;
+        }
+        this.availabilitySequence = sequence;
+        int changedStates = payload.readVarInt();
+        for (int i = 0; i < changedStates; i++) {
+            ConditionalState conditionalState = this.getReceivedConditionalState(payload.readVarInt());
+            if (conditionalState != null) {
+                conditionalState.applyDelta(payload);
+            } else {
+                ConditionalState.skipDelta(payload);
             }
         }
-        PacketByteBuf out = PacketByteBufs.create();
-        out.writeMap(
-                updatedChoice,
-                PacketByteBuf::writeString,
-                (b, updatedChoices) -> b.writeMap(updatedChoices, PacketByteBuf::writeVarInt, PacketByteBuf::writeBoolean)
-        );
-        return out;
-    }
-
-    public Map<String, Int2BooleanMap> createFullAvailabilityUpdatePacket() {
-        return this.conditionalChoices;
-    }
-
-    public void applyAvailabilityUpdate(PacketByteBuf payload) {
-        Map<String, Int2BooleanMap> map = payload.readMap(
-                PacketByteBuf::readString,
-                b -> b.readMap(Int2BooleanOpenHashMap::new, PacketByteBuf::readVarInt, PacketByteBuf::readBoolean)
-        );
-        map.forEach((stateKey, choiceIndices) -> {
-            Int2BooleanMap conditionalState = this.conditionalChoices.get(stateKey);
-            for (Int2BooleanMap.Entry updatedChoice : choiceIndices.int2BooleanEntrySet()) {
-                conditionalState.put(updatedChoice.getIntKey(), updatedChoice.getBooleanValue());
+        this.availableChoices = this.rebuildAvailableChoices();
+        return true;
+    }
+
+    /**
+     * Writes the availability of every conditional choice, along with the current sequence number.
+     * Pending changes are covered by the full update, so the next delta only holds the ones made after it.
+     */
+    public void writeFullAvailabilityUpdate(PacketByteBuf buf) {
+        buf.writeVarInt(this.availabilitySequence);
+        buf.writeVarInt(this.conditionalStates.length);
+        for (ConditionalState conditionalState : this.conditionalStates) {
+            buf.writeVarInt(conditionalState.stateIndex());
+            conditionalState.writeFull(buf);
+        }
+    }
+
+    public void applyFullAvailabilityUpdate(PacketByteBuf payload) {
+        this.availabilitySequence = payload.readVarInt();
+        this.awaitingFullAvailabilityUpdate = false;
+        int states = payload.readVarInt();
+        for (int i = 0; i < states; i++) {
+            ConditionalState conditionalState = this.getReceivedConditionalState(payload.readVarInt());
+            if (conditionalState != null) {
+                conditionalState.applyFull(payload);
+            } else {
+                ConditionalState.skipFull(payload);
             }
-            this.availableChoices = this.rebuildAvailableChoices();
-        });
+        }
+        this.availableChoices = this.rebuildAvailableChoices();
+    }
+
+    /**
+     * @return the conditional state with the given index, or {@code null} if that state did not get streamed yet
+     */
+    private @Nullable ConditionalState getReceivedConditionalState(int stateIndex) {
+        ConditionalState conditionalState = stateIndex >= 0 && stateIndex < this.conditionalStatesByIndex.length ? this.conditionalStatesByIndex[stateIndex] : null;
+        if (conditionalState == null && stateIndex >= 0 && stateIndex < this.stateKeys.length && !this.getStates().containsKey(this.stateKeys[stateIndex])) {
+            return null;    // availability of that state gets resynchronized once it is loaded
+        }
+        if (conditionalState == null) {
+            throw new IllegalStateException("Received availability update for unconditional state #" + stateIndex);
+        }
+        return conditionalState;
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no state with this index
+     */
+    public String getStateKey(int stateIndex) {
+        if (stateIndex < 0 || stateIndex >= this.stateKeys.length) {
+            throw new IllegalArgumentException("#" + stateIndex + " is not an available dialogue state");
+        }
+        return this.stateKeys[stateIndex];
     }
 
     public boolean isAvailable(int choice) {
-        return this.conditionalChoices.getOrDefault(this.currentStateKey, Int2BooleanMaps.EMPTY_MAP).getOrDefault(choice, true);
+        ConditionalState conditionalState = this.conditionalChoices.get(this.currentStateKey);
+        return conditionalState == null || conditionalState.isAvailable(choice);
     }
 
     public Optional<InstancedDialogueAction<?>> getStartAction() {
@@ -228,22 +532,33 @@ public final class DialogueStateMachine {
     }
 
     public DialogueState selectState(String state) {
-        if (!this.getStates().containsKey(state)) {
+        int stateIndex = this.stateIndices.getInt(state);
+        if (stateIndex < 0) {
             throw new IllegalArgumentException(state + " is not an available dialogue state");
         }
         this.currentStateKey = state;
-        DialogueState currentState = this.getStates().get(state);
+        this.currentStateIndex = stateIndex;
+        // Streamed states may not be there yet, in which case the choices will show up once they are loaded
+        DialogueState currentState = this.getCurrentState();
+        if (this.conditionContext != null) {
+            // States outside the last update's scope have stale conditions, catch up before anyone picks from them
+            this.startEvaluationPass();
+            this.evaluateConditions(state, this.conditionContext);
+        }
         this.availableChoices = rebuildAvailableChoices();
         return currentState;
     }
 
     private ImmutableList<AvailableChoice> rebuildAvailableChoices() {
+        if (!this.getStates().containsKey(this.currentStateKey)) {
+            return ImmutableList.of();  // still loading
+        }
         ImmutableList.Builder<AvailableChoice> newChoices = ImmutableList.builder();
         List<DialogueChoice> availableChoices = this.getCurrentState().choices();
         boolean allUnavailable = true;
         for (int i = 0; i < availableChoices.size(); i++) {
             DialogueChoice c = availableChoices.get(i);
-            boolean available = conditionalChoices.getOrDefault(this.currentStateKey, Int2BooleanMaps.EMPTY_MAP).getOrDefault(i, true);
+            boolean available = this.isAvailable(i);
             Optional<UnavailableAction> whenUnavailable = c.condition().map(DialogueChoiceCondition::whenUnavailable);
             allUnavailable &= !available;
             if (available || (whenUnavailable.filter(t -> t.display() == UnavailableDisplay.GRAYED_OUT).isPresent())) {
@@ -262,6 +577,17 @@ public final class DialogueStateMachine {
         return newChoices.build();
     }
 
+    /**
+     * @return the index of the current state, as sent over the network
+     */
+    public int getCurrentStateIndex() {
+        return this.currentStateIndex;
+    }
+
+    public ChoiceResult getCurrentStateType() {
+        return this.getCurrentState().type();
+    }
+
     public String getCurrentStateKey() {
         return Objects.requireNonNull(this.currentStateKey, () -> this + " has not been initialized !");
     }
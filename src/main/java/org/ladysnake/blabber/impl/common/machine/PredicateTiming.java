@@ -0,0 +1,84 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.machine;
+
+import net.minecraft.util.Identifier;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Time spent testing a single predicate, across every dialogue that references it.
+ * Loot predicates are keyed by their id, and native conditions by their type id.
+ *
+ * <p>Timings are looked up when recorded rather than held by condition tables, so that {@linkplain #resetAll() resetting} them
+ * also forgets predicates that no dialogue references anymore since the last datapack reload.
+ *
+ * <p>Timing is off until {@linkplain #setEnabled(boolean) enabled} through {@code /blabber stats predicates start},
+ * so that predicate tests do not pay for it otherwise.
+ */
+public final class PredicateTiming {
+    private static final Map<Identifier, PredicateTiming> timings = new ConcurrentHashMap<>();
+    private static volatile boolean enabled;
+
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    private PredicateTiming() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        PredicateTiming.enabled = enabled;
+    }
+
+    public static PredicateTiming get(Identifier predicateId) {
+        return timings.computeIfAbsent(predicateId, id -> new PredicateTiming());
+    }
+
+    public static Map<Identifier, PredicateTiming> getAll() {
+        return Collections.unmodifiableMap(timings);
+    }
+
+    public static void resetAll() {
+        timings.clear();
+    }
+
+    void record(long nanos) {
+        this.count++;
+        this.totalNanos += nanos;
+        if (nanos > this.maxNanos) this.maxNanos = nanos;
+    }
+
+    public long count() {
+        return this.count;
+    }
+
+    public long totalNanos() {
+        return this.totalNanos;
+    }
+
+    public long maxNanos() {
+        return this.maxNanos;
+    }
+}
@@ -59,6 +59,10 @@ public record DialogueChoice(Text text, List<String> illustrations, String next,
         this(buf.readText(), buf.readCollection(ArrayList::new, PacketByteBuf::readString), buf.readString(), buf.readOptional(DialogueChoiceCondition::new));
     }
 
+    public boolean isPersonalized() {
+        return TextPersonalization.isPersonalized(text()) || condition().filter(DialogueChoiceCondition::isPersonalized).isPresent();
+    }
+
     public DialogueChoice parseText(@Nullable ServerCommandSource source, @Nullable Entity sender) throws CommandSyntaxException {
         Optional<DialogueChoiceCondition> parsedCondition = condition().isEmpty() ? Optional.empty() : Optional.of(condition().get().parseText(source, sender));
         return new DialogueChoice(Texts.parse(source, text(), sender, 0), illustrations(), next(), parsedCondition);
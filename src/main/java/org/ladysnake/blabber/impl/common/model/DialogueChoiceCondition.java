@@ -20,37 +20,63 @@ package org.ladysnake.blabber.impl.common.model;
 import com.google.gson.JsonElement;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.serialization.Codec;
+import com.mojang.serialization.DataResult;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
 import net.minecraft.entity.Entity;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.server.command.ServerCommandSource;
-import net.minecraft.text.Text;
 import net.minecraft.util.Identifier;
 import org.jetbrains.annotations.Nullable;
 import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.impl.common.InstancedDialogueCondition;
+import org.ladysnake.blabber.impl.common.serialization.FailingOptionalFieldCodec;
 
-public record DialogueChoiceCondition(Identifier predicate, UnavailableAction whenUnavailable) {
+import java.util.Optional;
+
+/**
+ * @param predicate the id of a loot predicate to test
+ * @param condition a native condition to test, exclusive with {@code predicate}
+ */
+public record DialogueChoiceCondition(Optional<Identifier> predicate, Optional<InstancedDialogueCondition<?>> condition, UnavailableAction whenUnavailable) {
     static Codec<DialogueChoiceCondition> codec(Codec<JsonElement> jsonCodec) {
-        return RecordCodecBuilder.create(instance -> instance.group(
-                Identifier.CODEC.fieldOf("predicate").forGetter(DialogueChoiceCondition::predicate),
+        return RecordCodecBuilder.<DialogueChoiceCondition>create(instance -> instance.group(
+                FailingOptionalFieldCodec.of(Identifier.CODEC, "predicate").forGetter(DialogueChoiceCondition::predicate),
+                FailingOptionalFieldCodec.of(InstancedDialogueCondition.CODEC, "condition").forGetter(DialogueChoiceCondition::condition),
                 UnavailableAction.codec(jsonCodec).fieldOf("when_unavailable").forGetter(DialogueChoiceCondition::whenUnavailable)
-        ).apply(instance, DialogueChoiceCondition::new));
+        ).apply(instance, DialogueChoiceCondition::new)).flatXmap(DialogueChoiceCondition::validate, DialogueChoiceCondition::validate);
     }
 
     public static final Identifier DUMMY_CONDITION = Blabber.id("client_dummy");
 
+    private static DataResult<DialogueChoiceCondition> validate(DialogueChoiceCondition condition) {
+        if (condition.predicate().isPresent() == condition.condition().isPresent()) {
+            return DataResult.error("Choice conditions must have exactly one of 'predicate' or 'condition'");
+        }
+        return DataResult.success(condition);
+    }
+
     public static void writeToPacket(PacketByteBuf buf, DialogueChoiceCondition condition) {
         UnavailableAction.writeToPacket(buf, condition.whenUnavailable());
     }
 
     public DialogueChoiceCondition(PacketByteBuf buf) {
-        this(DUMMY_CONDITION, new UnavailableAction(buf));
+        this(Optional.of(DUMMY_CONDITION), Optional.empty(), new UnavailableAction(buf));
+    }
+
+    public boolean isPersonalized() {
+        return whenUnavailable().isPersonalized();
     }
 
     public DialogueChoiceCondition parseText(@Nullable ServerCommandSource source, @Nullable Entity sender) throws CommandSyntaxException {
         return new DialogueChoiceCondition(
                 predicate(),
+                condition(),
                 whenUnavailable().parseText(source, sender)
         );
     }
+
+    @Override
+    public String toString() {
+        return this.predicate().map(Identifier::toString).or(() -> this.condition().map(InstancedDialogueCondition::toString)).orElse("(no condition)");
+    }
 }
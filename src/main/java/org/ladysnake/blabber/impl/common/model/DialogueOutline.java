@@ -0,0 +1,73 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.model;
+
+import net.minecraft.util.Identifier;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The parts of a dialogue template that its structure gets validated from, leaving out texts, illustrations, layouts and actions.
+ *
+ * <p>Outlines can be {@linkplain DialogueTemplateReader#readOutline(byte[]) read} from a file for a fraction of the cost of decoding the template,
+ * which lets cold dialogues get validated without being decoded.
+ *
+ * @param illustrations the names of the template's illustrations
+ */
+public record DialogueOutline(String start, Map<String, State> states, Set<String> illustrations) {
+    public static DialogueOutline of(DialogueTemplate template) {
+        Map<String, State> states = new LinkedHashMap<>();
+        for (Map.Entry<String, DialogueState> state : template.states().entrySet()) {
+            List<Choice> choices = state.getValue().choices().stream().map(choice -> new Choice(
+                    choice.next(),
+                    choice.illustrations(),
+                    choice.condition().isPresent(),
+                    choice.condition().flatMap(DialogueChoiceCondition::predicate)
+            )).toList();
+            states.put(state.getKey(), new State(state.getValue().type(), state.getValue().illustrations(), choices));
+        }
+        return new DialogueOutline(template.start(), states, template.illustrations().keySet());
+    }
+
+    /**
+     * @return the ids of the loot predicates referenced by choice conditions, each with the key of the first state referencing it
+     */
+    public Map<Identifier, String> findReferencedPredicates() {
+        Map<Identifier, String> predicates = new LinkedHashMap<>();
+        for (Map.Entry<String, State> state : this.states.entrySet()) {
+            for (Choice choice : state.getValue().choices()) {
+                choice.predicate().ifPresent(predicate -> predicates.putIfAbsent(predicate, state.getKey()));
+            }
+        }
+        return predicates;
+    }
+
+    public record State(ChoiceResult type, List<String> illustrations, List<Choice> choices) {
+    }
+
+    /**
+     * @param conditional {@code true} if the choice has a loot predicate or a native condition
+     * @param predicate   the id of the choice's loot predicate, if it has one
+     */
+    public record Choice(String next, List<String> illustrations, boolean conditional, Optional<Identifier> predicate) {
+    }
+}
@@ -68,8 +68,19 @@ public record DialogueRandomAnswer(Text text) {
         this(buf.readText());
     }
 
+    /**
+     * @return {@code true} if {@link #parseText} may give different results for different players
+     */
+    public boolean isPersonalized() {
+        return hasClassPlaceholder(text().getString()) || TextPersonalization.isPersonalized(text());
+    }
+
+    private static boolean hasClassPlaceholder(String text) {
+        return text.contains("@class") || text.contains("@pluralclass") || text.contains("@Class") || text.contains("@pluralClass");
+    }
+
     public DialogueRandomAnswer parseText(@Nullable ServerCommandSource source, @Nullable Entity sender) throws CommandSyntaxException {
-        if(text().getString().contains("@class") || text().getString().contains("@pluralclass") || text().getString().contains("@Class") || text().getString().contains("@pluralClass")){
+        if(hasClassPlaceholder(text().getString())){
             try {
                 String c = ModComponents.ORIGIN.get(sender).getOrigin(OriginLayers.getLayer(new Identifier("elysium:class"))).getIdentifier().toString().replace("elysium:class/","");
                 String name=c.split("/")[0];
@@ -73,6 +73,13 @@ public record DialogueState(
         return this.choices.get(choice).next();
     }
 
+    /**
+     * @return {@code true} if {@link #parseText} may give different results for different players
+     */
+    public boolean isPersonalized() {
+        return text().stream().anyMatch(DialogueRandomAnswer::isPersonalized) || choices().stream().anyMatch(DialogueChoice::isPersonalized);
+    }
+
     public DialogueState parseText(@Nullable ServerCommandSource source, @Nullable Entity sender) throws CommandSyntaxException {
         List<DialogueChoice> parsedChoices = new ArrayList<>(choices().size());
         for (DialogueChoice choice : choices()) {
@@ -32,14 +32,20 @@ import org.ladysnake.blabber.api.illustration.DialogueIllustration;
 import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
 import org.ladysnake.blabber.api.layout.DialogueLayout;
 import org.ladysnake.blabber.api.layout.DialogueLayoutType;
-import org.ladysnake.blabber.impl.common.BlabberRegistrar;
 import org.ladysnake.blabber.impl.common.serialization.FailingOptionalFieldCodec;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+public record DialogueTemplate(String start, boolean unskippable, Map<String, DialogueState> states, Map<String, DialogueIllustration> illustrations, DialogueLayout<?> layout, int conditionRefreshTicks) {
+    public static final int DEFAULT_CONDITION_REFRESH_TICKS = 1;
+    private static final String PLACEHOLDER_STATE = "placeholder";
 
-public record DialogueTemplate(String start, boolean unskippable, Map<String, DialogueState> states, Map<String, DialogueIllustration> illustrations, DialogueLayout<?> layout) {
     public static final Codec<DialogueTemplate> CODEC = codec(Codec.PASSTHROUGH.comapFlatMap(
             dynamic -> DataResult.success(dynamic.convert(JsonOps.INSTANCE).getValue()),
             json -> new Dynamic<>(JsonOps.INSTANCE, json)
@@ -51,7 +57,8 @@ public record DialogueTemplate(String start, boolean unskippable, Map<String, Di
                 Codec.BOOL.optionalFieldOf("unskippable", false).forGetter(DialogueTemplate::unskippable),
                 Codec.unboundedMap(Codec.STRING, DialogueState.codec(jsonCodec)).fieldOf("states").forGetter(DialogueTemplate::states),
                 FailingOptionalFieldCodec.of(Codec.unboundedMap(Codec.STRING, DialogueIllustrationType.CODEC), "illustrations", Collections.emptyMap()).forGetter(DialogueTemplate::illustrations),
-                FailingOptionalFieldCodec.of(DialogueLayoutType.CODEC, "layout", DialogueLayout.DEFAULT).forGetter(DialogueTemplate::layout)
+                FailingOptionalFieldCodec.of(DialogueLayoutType.CODEC, "layout", DialogueLayout.DEFAULT).forGetter(DialogueTemplate::layout),
+                Codec.intRange(1, Integer.MAX_VALUE).optionalFieldOf("condition_refresh_ticks", DEFAULT_CONDITION_REFRESH_TICKS).forGetter(DialogueTemplate::conditionRefreshTicks)
         ).apply(instance, DialogueTemplate::new));
     }
 
@@ -59,27 +66,88 @@ public record DialogueTemplate(String start, boolean unskippable, Map<String, Di
         buf.writeString(dialogue.start());
         buf.writeBoolean(dialogue.unskippable());
         buf.writeMap(dialogue.states(), PacketByteBuf::writeString, DialogueState::writeToPacket);
-        buf.writeMap(dialogue.illustrations(), PacketByteBuf::writeString, (b, i) -> {
-            // Write the type, then the packet itself.
-            b.writeRegistryValue(BlabberRegistrar.ILLUSTRATION_REGISTRY, i.getType());
-            i.getType().writeToPacketUnsafe(b, i);
-        });
+        buf.writeMap(dialogue.illustrations(), PacketByteBuf::writeString, DialogueIllustrationType::writeIllustration);
         DialogueLayoutType.writeToPacket(buf, dialogue.layout());
+        buf.writeVarInt(dialogue.conditionRefreshTicks());
     }
 
     public DialogueTemplate(PacketByteBuf buf) {
-        this(buf.readString(), buf.readBoolean(), buf.readMap(PacketByteBuf::readString, DialogueState::new), buf.readMap(PacketByteBuf::readString, b -> {
-            DialogueIllustrationType<?> type = b.readRegistryValue(BlabberRegistrar.ILLUSTRATION_REGISTRY);
-            assert type != null;
-            return type.readFromPacket(b);
-        }), DialogueLayoutType.readFromPacket(buf));
+        this(buf.readString(), buf.readBoolean(), buf.readMap(PacketByteBuf::readString, DialogueState::new), buf.readMap(PacketByteBuf::readString, DialogueIllustrationType::readIllustration), DialogueLayoutType.readFromPacket(buf), buf.readVarInt());
     }
 
-    public DialogueTemplate parseText(@Nullable ServerCommandSource source, @Nullable Entity sender) throws CommandSyntaxException {
-        Map<String, DialogueState> parsedStates = new HashMap<>(states().size());
+    /**
+     * Writes the states and illustrations of a {@linkplain #parseText(ServerCommandSource, Entity) parsed} template that differ from the original
+     *
+     * @see #withOverrides(PacketByteBuf)
+     */
+    public static void writeOverrides(PacketByteBuf buf, DialogueTemplate template, DialogueTemplate parsed) {
+        buf.writeMap(changedEntries(template.states(), parsed.states()), PacketByteBuf::writeString, DialogueState::writeToPacket);
+        buf.writeMap(changedEntries(template.illustrations(), parsed.illustrations()), PacketByteBuf::writeString, DialogueIllustrationType::writeIllustration);
+    }
+
+    private static <V> Map<String, V> changedEntries(Map<String, V> original, Map<String, V> parsed) {
+        Map<String, V> changed = new HashMap<>();
+        for (Map.Entry<String, V> entry : parsed.entrySet()) {
+            V originalValue = original.get(entry.getKey());
+            // Unparsed entries are shared with the original, no need to compare them deeply
+            if (entry.getValue() != originalValue && !entry.getValue().equals(originalValue)) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return a copy of this template with the states and illustrations written by {@link #writeOverrides(PacketByteBuf, DialogueTemplate, DialogueTemplate)} swapped in
+     */
+    public DialogueTemplate withOverrides(PacketByteBuf buf) {
+        Map<String, DialogueState> states = new HashMap<>(states());
+        states.putAll(buf.readMap(PacketByteBuf::readString, DialogueState::new));
+        Map<String, DialogueIllustration> illustrations = new HashMap<>(illustrations());
+        illustrations.putAll(buf.readMap(PacketByteBuf::readString, DialogueIllustrationType::readIllustration));
+        return new DialogueTemplate(start(), unskippable(), states, illustrations, layout(), conditionRefreshTicks());
+    }
 
+    /**
+     * Creates a template with a single empty state, to stand in for a template that is not available yet
+     */
+    public static DialogueTemplate placeholder() {
+        return new DialogueTemplate(
+                PLACEHOLDER_STATE,
+                true,   // the server decides when the placeholder goes away
+                Map.of(PLACEHOLDER_STATE, new DialogueState(List.of(), List.of(), List.of(), Optional.empty(), ChoiceResult.DEFAULT)),
+                Map.of(),
+                DialogueLayout.DEFAULT,
+                DEFAULT_CONDITION_REFRESH_TICKS
+        );
+    }
+
+    /**
+     * @return the keys of the states containing texts that get resolved differently for each player
+     */
+    public Set<String> findPersonalizedStates() {
+        Set<String> personalizedStates = new HashSet<>();
         for (Map.Entry<String, DialogueState> state : states().entrySet()) {
-            parsedStates.put(state.getKey(), state.getValue().parseText(source, sender));
+            if (state.getValue().isPersonalized()) {
+                personalizedStates.add(state.getKey());
+            }
+        }
+        return personalizedStates;
+    }
+
+    public DialogueTemplate parseText(@Nullable ServerCommandSource source, @Nullable Entity sender) throws CommandSyntaxException {
+        return this.parseText(source, sender, this.findPersonalizedStates());
+    }
+
+    /**
+     * @param personalizedStates the states found by {@link #findPersonalizedStates()}, which are the only ones that get parsed.
+     *                           Other states are shared with this template, and get skipped by {@link #writeOverrides}.
+     */
+    public DialogueTemplate parseText(@Nullable ServerCommandSource source, @Nullable Entity sender, Set<String> personalizedStates) throws CommandSyntaxException {
+        Map<String, DialogueState> parsedStates = new HashMap<>(states());
+
+        for (String state : personalizedStates) {
+            parsedStates.put(state, states().get(state).parseText(source, sender));
         }
 
         Map<String, DialogueIllustration> parsedIllustrations = new HashMap<>(illustrations().size());
@@ -92,7 +160,8 @@ public record DialogueTemplate(String start, boolean unskippable, Map<String, Di
                 unskippable(),
                 parsedStates,
                 parsedIllustrations,
-                layout()
+                layout(),
+                conditionRefreshTicks()
         );
     }
 
@@ -0,0 +1,441 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.JsonOps;
+import net.minecraft.text.Text;
+import net.minecraft.util.Identifier;
+import org.ladysnake.blabber.api.illustration.DialogueIllustration;
+import org.ladysnake.blabber.api.illustration.DialogueIllustrationType;
+import org.ladysnake.blabber.api.layout.DialogueLayout;
+import org.ladysnake.blabber.api.layout.DialogueLayoutType;
+import org.ladysnake.blabber.impl.common.InstancedDialogueAction;
+import org.ladysnake.blabber.impl.common.InstancedDialogueCondition;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Decodes dialogue files in a single pass over their JSON, without building a whole {@link JsonElement} tree first.
+ *
+ * <p>Only the fixed parts of the format are read here, that is templates, states, texts, choices and their conditions.
+ * Extension points like illustrations, layouts, actions and native conditions are read as JSON and handed to their own codecs.
+ *
+ * <p>This reader only accepts files written the canonical way: anything the codec might treat differently,
+ * like a {@code null}, a number where a string is expected, or a value out of range, makes it give up.
+ * Callers then fall back to {@link DialogueTemplate#CODEC}, which thus stays the single source of truth for accepted files and error messages.
+ *
+ * <p>{@linkplain #readOutline(byte[]) Outlines} are read the same way, but skip every value they do not need instead of decoding it.
+ */
+public final class DialogueTemplateReader {
+    private static final Codec<Map<String, DialogueIllustration>> ILLUSTRATIONS_CODEC = Codec.unboundedMap(Codec.STRING, DialogueIllustrationType.CODEC);
+
+    private DialogueTemplateReader() {
+    }
+
+    /**
+     * @param content the UTF-8 content of a dialogue file
+     * @return the decoded template, or {@code empty} if the file needs to go through {@link DialogueTemplate#CODEC}
+     */
+    public static Optional<DialogueTemplate> read(byte[] content) {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8))) {
+            // Same leniency as Gson#fromJson, which the codec path goes through
+            reader.setLenient(true);
+            DialogueTemplate template = readTemplate(reader);
+            if (reader.peek() != JsonToken.END_DOCUMENT) return Optional.empty();
+            return Optional.of(template);
+        } catch (IOException | RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Texts, illustrations, layouts, actions and native conditions are only skipped over,
+     * so a file with a valid outline may still fail to {@linkplain #read(byte[]) decode}.
+     *
+     * @param content the UTF-8 content of a dialogue file
+     * @return the outline of the template, or {@code empty} if the file needs to go through {@link DialogueTemplate#CODEC}
+     */
+    public static Optional<DialogueOutline> readOutline(byte[] content) {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            DialogueOutline outline = readOutline(reader);
+            if (reader.peek() != JsonToken.END_DOCUMENT) return Optional.empty();
+            return Optional.of(outline);
+        } catch (IOException | RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static DialogueTemplate readTemplate(JsonReader reader) throws IOException {
+        String start = null;
+        boolean unskippable = false;
+        Map<String, DialogueState> states = null;
+        Map<String, DialogueIllustration> illustrations = Collections.emptyMap();
+        DialogueLayout<?> layout = DialogueLayout.DEFAULT;
+        int conditionRefreshTicks = DialogueTemplate.DEFAULT_CONDITION_REFRESH_TICKS;
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "start_at" -> start = readString(reader);
+                case "unskippable" -> unskippable = readBoolean(reader);
+                case "states" -> states = readStates(reader);
+                case "illustrations" -> illustrations = readWithCodec(reader, ILLUSTRATIONS_CODEC);
+                case "layout" -> layout = readWithCodec(reader, DialogueLayoutType.CODEC);
+                case "condition_refresh_ticks" -> conditionRefreshTicks = readPositiveInt(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (start == null || states == null) throw GiveUp.INSTANCE;
+        return new DialogueTemplate(start, unskippable, states, illustrations, layout, conditionRefreshTicks);
+    }
+
+    private static Map<String, DialogueState> readStates(JsonReader reader) throws IOException {
+        // Later duplicate keys win, like they do when Gson builds a JsonObject
+        Map<String, DialogueState> states = new LinkedHashMap<>();
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            states.put(key, readState(reader));
+        }
+        reader.endObject();
+        return ImmutableMap.copyOf(states);
+    }
+
+    private static DialogueState readState(JsonReader reader) throws IOException {
+        List<DialogueRandomAnswer> text = List.of();
+        List<String> illustrations = Collections.emptyList();
+        List<DialogueChoice> choices = List.of();
+        Optional<InstancedDialogueAction<?>> action = Optional.empty();
+        ChoiceResult type = ChoiceResult.DEFAULT;
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "text" -> text = readList(reader, DialogueTemplateReader::readRandomAnswer);
+                case "illustrations" -> illustrations = readList(reader, DialogueTemplateReader::readString);
+                case "choices" -> choices = readList(reader, DialogueTemplateReader::readChoice);
+                case "action" -> action = Optional.of(readWithCodec(reader, InstancedDialogueAction.CODEC));
+                case "type" -> type = readChoiceResult(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new DialogueState(text, illustrations, choices, action, type);
+    }
+
+    private static DialogueRandomAnswer readRandomAnswer(JsonReader reader) throws IOException {
+        Text text = Text.empty();
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("text")) {
+                text = readText(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new DialogueRandomAnswer(text);
+    }
+
+    private static DialogueChoice readChoice(JsonReader reader) throws IOException {
+        Text text = Text.empty();
+        List<String> illustrations = Collections.emptyList();
+        String next = null;
+        Optional<DialogueChoiceCondition> condition = Optional.empty();
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "text" -> text = readText(reader);
+                case "illustrations" -> illustrations = readList(reader, DialogueTemplateReader::readString);
+                case "next" -> next = readString(reader);
+                case "only_if" -> condition = Optional.of(readCondition(reader));
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (next == null) throw GiveUp.INSTANCE;
+        return new DialogueChoice(text, illustrations, next, condition);
+    }
+
+    private static DialogueChoiceCondition readCondition(JsonReader reader) throws IOException {
+        Optional<Identifier> predicate = Optional.empty();
+        Optional<InstancedDialogueCondition<?>> condition = Optional.empty();
+        UnavailableAction whenUnavailable = null;
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "predicate" -> predicate = Optional.of(readIdentifier(reader));
+                case "condition" -> condition = Optional.of(readWithCodec(reader, InstancedDialogueCondition.CODEC));
+                case "when_unavailable" -> whenUnavailable = readUnavailableAction(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (whenUnavailable == null || predicate.isPresent() == condition.isPresent()) throw GiveUp.INSTANCE;
+        return new DialogueChoiceCondition(predicate, condition, whenUnavailable);
+    }
+
+    private static UnavailableAction readUnavailableAction(JsonReader reader) throws IOException {
+        UnavailableDisplay display = null;
+        Optional<Text> message = Optional.empty();
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "display" -> display = readUnavailableDisplay(reader);
+                case "message" -> message = Optional.of(readText(reader));
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (display == null) throw GiveUp.INSTANCE;
+        return new UnavailableAction(display, message);
+    }
+
+    private static DialogueOutline readOutline(JsonReader reader) throws IOException {
+        String start = null;
+        Map<String, DialogueOutline.State> states = null;
+        Set<String> illustrations = Set.of();
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "start_at" -> start = readString(reader);
+                case "states" -> states = readOutlineStates(reader);
+                case "illustrations" -> illustrations = readKeys(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (start == null || states == null) throw GiveUp.INSTANCE;
+        return new DialogueOutline(start, states, illustrations);
+    }
+
+    private static Map<String, DialogueOutline.State> readOutlineStates(JsonReader reader) throws IOException {
+        Map<String, DialogueOutline.State> states = new LinkedHashMap<>();
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            states.put(key, readOutlineState(reader));
+        }
+        reader.endObject();
+        return ImmutableMap.copyOf(states);
+    }
+
+    private static DialogueOutline.State readOutlineState(JsonReader reader) throws IOException {
+        List<String> illustrations = Collections.emptyList();
+        List<DialogueOutline.Choice> choices = List.of();
+        ChoiceResult type = ChoiceResult.DEFAULT;
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "illustrations" -> illustrations = readList(reader, DialogueTemplateReader::readString);
+                case "choices" -> choices = readList(reader, DialogueTemplateReader::readOutlineChoice);
+                case "type" -> type = readChoiceResult(reader);
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new DialogueOutline.State(type, illustrations, choices);
+    }
+
+    private static DialogueOutline.Choice readOutlineChoice(JsonReader reader) throws IOException {
+        List<String> illustrations = Collections.emptyList();
+        String next = null;
+        boolean conditional = false;
+        Optional<Identifier> predicate = Optional.empty();
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "illustrations" -> illustrations = readList(reader, DialogueTemplateReader::readString);
+                case "next" -> next = readString(reader);
+                case "only_if" -> {
+                    conditional = true;
+                    predicate = readOutlineCondition(reader);
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (next == null) throw GiveUp.INSTANCE;
+        return new DialogueOutline.Choice(next, illustrations, conditional, predicate);
+    }
+
+    /**
+     * @return the condition's loot predicate, or {@code empty} if it tests a native condition
+     */
+    private static Optional<Identifier> readOutlineCondition(JsonReader reader) throws IOException {
+        Optional<Identifier> predicate = Optional.empty();
+        boolean nativeCondition = false;
+        boolean whenUnavailable = false;
+
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "predicate" -> predicate = Optional.of(readIdentifier(reader));
+                case "condition" -> {
+                    nativeCondition = true;
+                    reader.skipValue();
+                }
+                case "when_unavailable" -> {
+                    whenUnavailable = true;
+                    reader.skipValue();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!whenUnavailable || predicate.isPresent() == nativeCondition) throw GiveUp.INSTANCE;
+        return predicate;
+    }
+
+    private static Set<String> readKeys(JsonReader reader) throws IOException {
+        Set<String> keys = new LinkedHashSet<>();
+        expect(reader, JsonToken.BEGIN_OBJECT);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            keys.add(reader.nextName());
+            reader.skipValue();
+        }
+        reader.endObject();
+        return Collections.unmodifiableSet(keys);
+    }
+
+    private static <T> List<T> readList(JsonReader reader, ElementReader<T> elementReader) throws IOException {
+        List<T> list = new ArrayList<>();
+        expect(reader, JsonToken.BEGIN_ARRAY);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            list.add(elementReader.read(reader));
+        }
+        reader.endArray();
+        return ImmutableList.copyOf(list);
+    }
+
+    private static Text readText(JsonReader reader) throws IOException {
+        Text text = Text.Serializer.fromJson(readJson(reader));
+        if (text == null) throw GiveUp.INSTANCE;
+        return text;
+    }
+
+    private static <T> T readWithCodec(JsonReader reader, Codec<T> codec) throws IOException {
+        return codec.parse(JsonOps.INSTANCE, readJson(reader)).result().orElseThrow(() -> GiveUp.INSTANCE);
+    }
+
+    private static JsonElement readJson(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) throw GiveUp.INSTANCE;
+        return JsonParser.parseReader(reader);
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        expect(reader, JsonToken.STRING);
+        return reader.nextString();
+    }
+
+    private static boolean readBoolean(JsonReader reader) throws IOException {
+        expect(reader, JsonToken.BOOLEAN);
+        return reader.nextBoolean();
+    }
+
+    private static int readPositiveInt(JsonReader reader) throws IOException {
+        expect(reader, JsonToken.NUMBER);
+        // Throws on fractions and exponents, which the codec would truncate
+        int value = Integer.parseInt(reader.nextString());
+        if (value < 1) throw GiveUp.INSTANCE;
+        return value;
+    }
+
+    private static Identifier readIdentifier(JsonReader reader) throws IOException {
+        Identifier id = Identifier.tryParse(readString(reader));
+        if (id == null) throw GiveUp.INSTANCE;
+        return id;
+    }
+
+    private static ChoiceResult readChoiceResult(JsonReader reader) throws IOException {
+        String name = readString(reader).toUpperCase(Locale.ROOT);
+        for (ChoiceResult result : ChoiceResult.values()) {
+            if (result.name().equals(name)) return result;
+        }
+        throw GiveUp.INSTANCE;
+    }
+
+    private static UnavailableDisplay readUnavailableDisplay(JsonReader reader) throws IOException {
+        String name = readString(reader);
+        for (UnavailableDisplay display : UnavailableDisplay.values()) {
+            if (display.asString().equals(name)) return display;
+        }
+        throw GiveUp.INSTANCE;
+    }
+
+    private static void expect(JsonReader reader, JsonToken token) throws IOException {
+        if (reader.peek() != token) throw GiveUp.INSTANCE;
+    }
+
+    @FunctionalInterface
+    private interface ElementReader<T> {
+        T read(JsonReader reader) throws IOException;
+    }
+
+    /**
+     * Thrown when the input should be judged by the codec instead
+     */
+    private static final class GiveUp extends RuntimeException {
+        static final GiveUp INSTANCE = new GiveUp();
+
+        private GiveUp() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -52,6 +52,10 @@ public record UnavailableAction(UnavailableDisplay display, Optional<Text> messa
         buf.writeOptional(action.message(), PacketByteBuf::writeText);
     }
 
+    public boolean isPersonalized() {
+        return message().filter(TextPersonalization::isPersonalized).isPresent();
+    }
+
     public UnavailableAction parseText(@Nullable ServerCommandSource source, @Nullable Entity sender) throws CommandSyntaxException {
         Optional<Text> parsedMessage = message().isEmpty() ? Optional.empty() : Optional.of(Texts.parse(source, message().get(), sender, 0));
         return new UnavailableAction(display(), parsedMessage);
@@ -17,16 +17,16 @@
  */
 package org.ladysnake.blabber.impl.common.packets;
 
-public record SelectedDialogueStatePacket(String stateKey) {
+public record SelectedDialogueStatePacket(int stateIndex) {
     /*public static final PacketType<SelectedDialogueStatePacket> TYPE = PacketType.create(Blabber.id("selected_dialogue_state"), SelectedDialogueStatePacket::new);
 
     public SelectedDialogueStatePacket(PacketByteBuf buf) {
-        this(buf.readString());
+        this(buf.readVarInt());
     }
 
     @Override
     public void write(PacketByteBuf buf) {
-        buf.writeString(this.stateKey);
+        buf.writeVarInt(this.stateIndex);
     }
 
     @Override
@@ -0,0 +1,159 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.serialization;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DecoderException;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.network.PacketByteBuf;
+import org.jetbrains.annotations.Nullable;
+import org.ladysnake.blabber.api.illustration.DialogueIllustration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A packet buffer which writes every distinct string and illustration only once.
+ *
+ * <p>The first occurrence of a string is written inline, prefixed with {@code 0}. Every later occurrence is written as
+ * its position in the string table plus one. Identifiers and texts go through {@link #writeString(String, int)},
+ * so they get deduplicated too. Illustrations work the same way through {@link #writeIllustrationReference(DialogueIllustration)}.
+ *
+ * <p>Both tables only live as long as the buffer, so data must be read back with a fresh buffer, in the same order.
+ *
+ * <p>Illustration payloads normally only get written as a hash of data that the server keeps in memory.
+ * Buffers that {@linkplain #keepPayloads(Long2ObjectMap) keep payloads} also hold on to that data,
+ * so that it can be stored along with the encoding and read back by another process.
+ */
+public final class CompactPacketByteBuf extends PacketByteBuf {
+    /**
+     * Bumped whenever the encoding of dialogue templates changes, so that stale data (e.g. in a client's disk cache) gets rejected
+     */
+    public static final int FORMAT_VERSION = 2;
+    private static final int NEW_ENTRY = 0;
+
+    private final Object2IntMap<String> writtenStrings = new Object2IntOpenHashMap<>();
+    private final List<String> readStrings = new ArrayList<>();
+    private final Object2IntMap<DialogueIllustration> writtenIllustrations = new Object2IntOpenHashMap<>();
+    private final List<DialogueIllustration> readIllustrations = new ArrayList<>();
+    private int illustrationCount;
+    private @Nullable Long2ObjectMap<NbtCompound> payloads;
+
+    public CompactPacketByteBuf(ByteBuf parent) {
+        super(parent);
+    }
+
+    public CompactPacketByteBuf writeFormatVersion() {
+        this.writeVarInt(FORMAT_VERSION);
+        return this;
+    }
+
+    /**
+     * @throws DecoderException if the data was written with a different version of the format
+     */
+    public CompactPacketByteBuf readFormatVersion() {
+        int version = this.readVarInt();
+        if (version != FORMAT_VERSION) {
+            throw new DecoderException("Unsupported dialogue format version " + version + " (expected " + FORMAT_VERSION + ")");
+        }
+        return this;
+    }
+
+    @Override
+    public PacketByteBuf writeString(String string, int maxLength) {
+        int index = this.writtenStrings.getOrDefault(string, -1);
+        if (index >= 0) {
+            this.writeVarInt(index + 1);
+        } else {
+            this.writeVarInt(NEW_ENTRY);
+            super.writeString(string, maxLength);
+            this.writtenStrings.put(string, this.writtenStrings.size());
+        }
+        return this;
+    }
+
+    @Override
+    public String readString(int maxLength) {
+        int reference = this.readVarInt();
+        if (reference == NEW_ENTRY) {
+            String string = super.readString(maxLength);
+            this.readStrings.add(string);
+            return string;
+        }
+        if (reference > this.readStrings.size()) {
+            throw new DecoderException("Invalid string reference " + reference + " (only " + this.readStrings.size() + " strings read)");
+        }
+        return this.readStrings.get(reference - 1);
+    }
+
+    /**
+     * Writes a reference to an identical illustration that was written before, if any.
+     * Otherwise, writes a marker and the caller must write the illustration itself, then {@linkplain #markIllustrationWritten(DialogueIllustration) mark it written}.
+     *
+     * @return {@code true} if a reference got written
+     */
+    public boolean writeIllustrationReference(DialogueIllustration illustration) {
+        int index = this.writtenIllustrations.getOrDefault(illustration, -1);
+        this.writeVarInt(index + 1);
+        return index >= 0;
+    }
+
+    public void markIllustrationWritten(DialogueIllustration illustration) {
+        // Count every illustration, so that indices match the reading side even if an equal one was somehow written twice
+        this.writtenIllustrations.putIfAbsent(illustration, this.illustrationCount++);
+    }
+
+    /**
+     * @return the illustration previously read with this reference, or {@code null} if the caller must read the illustration itself
+     * and {@linkplain #markIllustrationRead(DialogueIllustration) mark it read}
+     */
+    public @Nullable DialogueIllustration readIllustrationReference() {
+        int reference = this.readVarInt();
+        if (reference == NEW_ENTRY) return null;
+        if (reference > this.readIllustrations.size()) {
+            throw new DecoderException("Invalid illustration reference " + reference + " (only " + this.readIllustrations.size() + " illustrations read)");
+        }
+        return this.readIllustrations.get(reference - 1);
+    }
+
+    public void markIllustrationRead(DialogueIllustration illustration) {
+        this.readIllustrations.add(illustration);
+    }
+
+    /**
+     * @param payloads the illustration payloads written to this buffer get put in this map, and the ones read from it get looked up there
+     */
+    public CompactPacketByteBuf keepPayloads(Long2ObjectMap<NbtCompound> payloads) {
+        this.payloads = payloads;
+        return this;
+    }
+
+    public void putPayload(long hash, NbtCompound payload) {
+        if (this.payloads != null) this.payloads.putIfAbsent(hash, payload);
+    }
+
+    /**
+     * @return the payload with the given hash, or {@code null} if this buffer does not {@linkplain #keepPayloads(Long2ObjectMap) keep payloads} or does not have it
+     */
+    public @Nullable NbtCompound getPayload(long hash) {
+        return this.payloads == null ? null : this.payloads.get(hash);
+    }
+}
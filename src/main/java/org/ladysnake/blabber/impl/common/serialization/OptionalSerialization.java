@@ -44,4 +44,43 @@ public class OptionalSerialization {
             buf.writeBoolean(false);
         }
     }
+
+    /**
+     * Writes up to 8 optional ints as a single presence bitmask, followed by the values that are present
+     */
+    public static void writeOptionalInts(PacketByteBuf buf, OptionalInt... values) {
+        if (values.length > Byte.SIZE) throw new IllegalArgumentException("Too many optional values: " + values.length);
+        int presence = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].isPresent()) presence |= 1 << i;
+        }
+        buf.writeByte(presence);
+        for (OptionalInt value : values) {
+            if (value.isPresent()) writeSignedVarInt(buf, value.getAsInt());
+        }
+    }
+
+    /**
+     * @see #writeOptionalInts(PacketByteBuf, OptionalInt...)
+     */
+    public static OptionalInt[] readOptionalInts(PacketByteBuf buf, int count) {
+        int presence = buf.readUnsignedByte();
+        OptionalInt[] values = new OptionalInt[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = (presence & (1 << i)) != 0 ? OptionalInt.of(readSignedVarInt(buf)) : OptionalInt.empty();
+        }
+        return values;
+    }
+
+    /**
+     * Writes an int that may well be negative, using zigzag encoding so that small negative values stay small
+     */
+    public static void writeSignedVarInt(PacketByteBuf buf, int value) {
+        buf.writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public static int readSignedVarInt(PacketByteBuf buf) {
+        int encoded = buf.readVarInt();
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
 }
@@ -18,8 +18,7 @@
 package org.ladysnake.blabber.impl.common.validation;
 
 import org.ladysnake.blabber.impl.common.model.ChoiceResult;
-import org.ladysnake.blabber.impl.common.model.DialogueChoice;
-import org.ladysnake.blabber.impl.common.model.DialogueState;
+import org.ladysnake.blabber.impl.common.model.DialogueOutline;
 import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
 
 import java.util.ArrayDeque;
@@ -33,12 +32,16 @@ import java.util.Objects;
 
 public final class DialogueValidator {
     public static ValidationResult validateStructure(DialogueTemplate dialogue) {
+        return validateStructure(DialogueOutline.of(dialogue));
+    }
+
+    public static ValidationResult validateStructure(DialogueOutline dialogue) {
         Map<String, Map<String, Reachability>> parents = new HashMap<>();
         Deque<String> waitList = new ArrayDeque<>();
         Map<String, Reachability> unvalidated = new HashMap<>();
         List<ValidationResult.Warning> warnings = new ArrayList<>();
 
-        for (Map.Entry<String, DialogueState> state : dialogue.states().entrySet()) {
+        for (Map.Entry<String, DialogueOutline.State> state : dialogue.states().entrySet()) {
             if (state.getValue().type().equals(ChoiceResult.END_DIALOGUE)) {
                 waitList.add(state.getKey());
             } else if (dialogue.states().get(state.getKey()).choices().isEmpty()) {
@@ -46,10 +49,10 @@ public final class DialogueValidator {
             } else {
                 unvalidated.put(state.getKey(), Reachability.NONE);
 
-                for (DialogueChoice choice : state.getValue().choices()) {
+                for (DialogueOutline.Choice choice : state.getValue().choices()) {
                     parents.computeIfAbsent(choice.next(), n -> new HashMap<>()).put(
                             state.getKey(),
-                            choice.condition().isPresent() ? Reachability.CONDITIONAL : Reachability.PROVEN
+                            choice.conditional() ? Reachability.CONDITIONAL : Reachability.PROVEN
                     );
                 }
             }
@@ -95,9 +98,9 @@ public final class DialogueValidator {
 
         // Verify that all illustrations are real. We're doing this here because this is a class and not a record
         // So we have our own constructor.
-        for (Map.Entry<String, DialogueState> state : dialogue.states().entrySet()) {
+        for (Map.Entry<String, DialogueOutline.State> state : dialogue.states().entrySet()) {
             for (String illustration : state.getValue().illustrations()) {
-                if (!dialogue.illustrations().containsKey(illustration)) {
+                if (!dialogue.illustrations().contains(illustration)) {
                     return new ValidationResult.Error.NonexistentIllustration(state.getKey(), illustration);
                 }
             }
@@ -106,10 +109,10 @@ public final class DialogueValidator {
         return warnings.isEmpty() ? ValidationResult.success() : new ValidationResult.Warnings(warnings);
     }
 
-    private static ValidationResult validateIllustrations(DialogueTemplate dialogue, Map.Entry<String, DialogueState> state) {
+    private static ValidationResult validateIllustrations(DialogueOutline dialogue, Map.Entry<String, DialogueOutline.State> state) {
         List<String> illustrations = new ArrayList<>(state.getValue().illustrations());
 
-        for (DialogueChoice c : state.getValue().choices()) {
+        for (DialogueOutline.Choice c : state.getValue().choices()) {
             illustrations.addAll(c.illustrations());
         }
 
@@ -118,7 +121,7 @@ public final class DialogueValidator {
         }
 
         for (String illustration : illustrations) {
-            if (!dialogue.illustrations().containsKey(illustration)) {
+            if (!dialogue.illustrations().contains(illustration)) {
                 return new ValidationResult.Error.NonexistentIllustration(state.getKey(), illustration);
             }
         }
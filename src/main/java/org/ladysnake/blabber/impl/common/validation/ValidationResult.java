@@ -17,6 +17,7 @@
  */
 package org.ladysnake.blabber.impl.common.validation;
 
+import net.minecraft.util.Identifier;
 import org.ladysnake.blabber.impl.common.model.ChoiceResult;
 
 import java.util.List;
@@ -83,6 +84,13 @@ public sealed interface ValidationResult {
             }
         }
 
+        record NonexistentPredicate(String state, Identifier predicate) implements Error {
+            @Override
+            public String message() {
+                return state() + " references non-existent predicate " + predicate();
+            }
+        }
+
         record InvalidIllustratedState(String state, ChoiceResult type, List<String> illustrations) implements Error {
             @Override
             public String message() {
@@ -0,0 +1,140 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.mojang.serialization.JsonOps;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.test.GameTestException;
+import net.minecraft.util.Identifier;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.validation.DialogueValidatorTest;
+import org.ladysnake.blabber.impl.common.validation.ValidationResult;
+
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class DialogueBundleTest {
+    private static final List<String> DIALOGUES = List.of("illustration_tests", "mountain_king", "perception_check", "remnant_choice");
+    private static final Identifier PREDICATE = new Identifier("babblings", "holding_emerald");
+
+    @BeforeAll
+    public static void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+        if (!BlabberRegistrar.ILLUSTRATION_REGISTRY.containsId(Blabber.id("item"))) {
+            // Entrypoints do not run in unit tests, but the testmod dialogues need the builtin illustrations
+            new Blabber().onInitialize();
+        }
+    }
+
+    @Test
+    public void templatesRoundTrip(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("dialogues.bundle");
+        HashCode fingerprint = Hashing.murmur3_128().hashInt(1);
+        ValidationResult warnings = new ValidationResult.Warnings(List.of(new ValidationResult.Warning.Unreachable("a"), new ValidationResult.Warning.ConditionalSoftLock("b")));
+        List<DialogueBundle.CompiledFile> files = new ArrayList<>();
+        for (String name : DIALOGUES) {
+            files.add(name.equals("mountain_king") ? compiledFile(name, Map.of(PREDICATE, "barter"), warnings) : compiledFile(name, Map.of(), ValidationResult.success()));
+        }
+        DialogueBundle.write(file, fingerprint, files);
+
+        DialogueBundle bundle = DialogueBundle.open(file, fingerprint);
+        Assertions.assertNotNull(bundle);
+        for (DialogueBundle.CompiledFile compiledFile : files) {
+            // Actions, conditions and illustration data included, which the network encoding leaves out
+            Assertions.assertEquals(toJson(compiledFile.template()), toJson(bundle.decode(compiledFile.location())), () -> compiledFile.location() + " should decode to the bundled template");
+        }
+        Assertions.assertEquals(Map.of(PREDICATE, "barter"), bundle.getReferencedPredicates(location("mountain_king")));
+        Assertions.assertEquals(warnings, bundle.getValidation(location("mountain_king")));
+        Assertions.assertEquals(Map.of(), bundle.getReferencedPredicates(location("remnant_choice")));
+        Assertions.assertEquals(ValidationResult.success(), bundle.getValidation(location("remnant_choice")));
+        Assertions.assertFalse(bundle.contains(location("unknown")));
+    }
+
+    @Test
+    public void otherFingerprintsAreIgnored(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("dialogues.bundle");
+        DialogueBundle.write(file, Hashing.murmur3_128().hashInt(1), List.of(compiledFile("remnant_choice", Map.of(), ValidationResult.success())));
+        Assertions.assertNull(DialogueBundle.open(file, Hashing.murmur3_128().hashInt(2)));
+        Assertions.assertNull(DialogueBundle.open(directory.resolve("missing.bundle"), Hashing.murmur3_128().hashInt(1)));
+    }
+
+    @Test
+    @DisabledOnOs(value = OS.WINDOWS, disabledReason = "Windows cannot replace a mapped file")
+    public void openBundlesCanBeReplaced(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("dialogues.bundle");
+        HashCode fingerprint = Hashing.murmur3_128().hashInt(1);
+        DialogueBundle.CompiledFile compiledFile = compiledFile("remnant_choice", Map.of(), ValidationResult.success());
+        DialogueBundle.write(file, fingerprint, List.of(compiledFile));
+        DialogueBundle bundle = DialogueBundle.open(file, fingerprint);
+        Assertions.assertNotNull(bundle);
+
+        HashCode newFingerprint = Hashing.murmur3_128().hashInt(2);
+        DialogueBundle.write(file, newFingerprint, List.of(compiledFile("mountain_king", Map.of(), ValidationResult.success())));
+        Assertions.assertNotNull(DialogueBundle.open(file, newFingerprint), "The new bundle should have replaced the open one");
+        Assertions.assertEquals(toJson(compiledFile.template()), toJson(bundle.decode(compiledFile.location())), "The open bundle should keep reading the file it mapped");
+    }
+
+    @Test
+    public void truncatedBundlesAreIgnored(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("dialogues.bundle");
+        HashCode fingerprint = Hashing.murmur3_128().hashInt(1);
+        DialogueBundle.write(file, fingerprint, List.of(compiledFile("remnant_choice", Map.of(), ValidationResult.success())));
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 1));
+        Assertions.assertNull(DialogueBundle.open(file, fingerprint));
+    }
+
+    private static Identifier location(String name) {
+        return new Identifier("babblings", "blabber/dialogues/" + name + ".json");
+    }
+
+    private static DialogueBundle.CompiledFile compiledFile(String name, Map<Identifier, String> referencedPredicates, ValidationResult validation) throws Exception {
+        return new DialogueBundle.CompiledFile(location(name), loadDialogue("/data/babblings/blabber/dialogues/" + name + ".json"), referencedPredicates, validation);
+    }
+
+    private static JsonElement toJson(DialogueTemplate template) throws Exception {
+        return DialogueValidatorTest.getResult(DialogueTemplate.CODEC.encodeStart(JsonOps.INSTANCE, template), s -> {
+            throw new GameTestException(s);
+        });
+    }
+
+    private static DialogueTemplate loadDialogue(String name) throws Exception {
+        return DialogueValidatorTest.getResult(DialogueTemplate.CODEC.parse(JsonOps.INSTANCE, new Gson().fromJson(new InputStreamReader(Objects.requireNonNull(DialogueBundleTest.class.getResourceAsStream(name))), JsonElement.class)), s -> {
+            throw new GameTestException(s);
+        });
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.text.Text;
+import net.minecraft.util.Identifier;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.ladysnake.blabber.api.illustration.DialogueIllustration;
+import org.ladysnake.blabber.api.layout.DialogueLayout;
+import org.ladysnake.blabber.impl.common.machine.DialogueStateMachine;
+import org.ladysnake.blabber.impl.common.model.ChoiceResult;
+import org.ladysnake.blabber.impl.common.model.DialogueChoice;
+import org.ladysnake.blabber.impl.common.model.DialogueRandomAnswer;
+import org.ladysnake.blabber.impl.common.model.DialogueState;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.serialization.CompactPacketByteBuf;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+public class DialogueTemplateStreamTest {
+    private static final int STATE_COUNT = 2000;
+
+    @BeforeAll
+    public static void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    public void streamSendsNearbyStatesFirst() {
+        DialogueTemplate template = createLargeTemplate();
+        String[] stateKeys = DialogueStateMachine.sortedStateKeys(template);
+        DialogueTemplateStream stream = new DialogueTemplateStream(new Identifier("blabber", "test"), template, 42L);
+        Map<String, DialogueState> states = new HashMap<>();
+        Map<String, DialogueIllustration> illustrations = new HashMap<>();
+
+        Map<String, DialogueState> firstChunk = new HashMap<>();
+        Assertions.assertFalse(readChunk(stream, "state_1000", stateKeys, firstChunk, illustrations));
+        Assertions.assertTrue(firstChunk.size() > 1 && firstChunk.size() < STATE_COUNT, "The first chunk should hold some but not all states, got " + firstChunk.size());
+        Assertions.assertTrue(firstChunk.containsKey("state_1000") && firstChunk.containsKey("state_1001") && firstChunk.containsKey("state_1002"), "The current state and its neighbours should come first");
+        Assertions.assertFalse(firstChunk.containsKey("state_0000"), "States that come before the current one should come last");
+        states.putAll(firstChunk);
+
+        int chunks = 1;
+        while (!readChunk(stream, "state_1000", stateKeys, states, illustrations)) {
+            Assertions.assertTrue(++chunks < STATE_COUNT, "The stream never completed");
+        }
+        Assertions.assertEquals(template.states().keySet(), states.keySet());
+    }
+
+    /**
+     * @return {@code true} if the stream completed
+     */
+    private static boolean readChunk(DialogueTemplateStream stream, String currentState, String[] stateKeys, Map<String, DialogueState> states, Map<String, DialogueIllustration> illustrations) {
+        CompactPacketByteBuf out = new CompactPacketByteBuf(Unpooled.buffer());
+        stream.writeChunk(out, currentState);
+        // A single state may go over budget, but not by much
+        Assertions.assertTrue(out.readableBytes() < DialogueTemplateStream.CHUNK_SIZE * 2, "Chunk too large: " + out.readableBytes() + " bytes");
+        CompactPacketByteBuf in = new CompactPacketByteBuf(Unpooled.copiedBuffer(out));
+        Assertions.assertEquals(42L, in.readLong());
+        DialogueTemplateStream.readStates(in, stateKeys, states, illustrations);
+        boolean complete = in.readBoolean();
+        if (complete) {
+            illustrations.putAll(in.readMap(PacketByteBuf::readString, buf -> {
+                throw new AssertionError("The test template has no illustration");
+            }));
+        }
+        return complete;
+    }
+
+    /**
+     * A long chain of states, each of which can skip ahead by one
+     */
+    private static DialogueTemplate createLargeTemplate() {
+        Map<String, DialogueState> states = new HashMap<>();
+        for (int i = 0; i < STATE_COUNT; i++) {
+            List<DialogueChoice> choices = i + 2 < STATE_COUNT ? List.of(
+                    new DialogueChoice(Text.literal("Next"), List.of(), stateKey(i + 1), Optional.empty()),
+                    new DialogueChoice(Text.literal("Skip"), List.of(), stateKey(i + 2), Optional.empty())
+            ) : List.of();
+            states.put(stateKey(i), new DialogueState(
+                    List.of(new DialogueRandomAnswer(Text.literal("This is line number " + i + " of a rather long conversation."))),
+                    List.of(),
+                    choices,
+                    Optional.empty(),
+                    choices.isEmpty() ? ChoiceResult.END_DIALOGUE : ChoiceResult.DEFAULT
+            ));
+        }
+        return new DialogueTemplate(stateKey(0), false, states, Map.of(), DialogueLayout.DEFAULT, DialogueTemplate.DEFAULT_CONDITION_REFRESH_TICKS);
+    }
+
+    private static String stateKey(int i) {
+        return "state_%04d".formatted(i);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.network.PacketByteBuf;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class IllustrationDataSyncTest {
+    @BeforeAll
+    public static void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    public void equalPayloadsShareTheirHash() {
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+        IllustrationDataSync.writeData(buf, createArmourData());
+        IllustrationDataSync.writeData(buf, createArmourData());
+        Assertions.assertEquals(2 * Long.BYTES, buf.readableBytes(), "Only hashes should go on the wire");
+        Assertions.assertEquals(buf.readLong(), buf.readLong());
+    }
+
+    @Test
+    public void missingPayloadsGetFilledInPlace() {
+        NbtCompound data = createArmourData();
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+        IllustrationDataSync.writeData(buf, data);
+        // Pretend we are a client that never saw it
+        IllustrationDataSync.clearServedData();
+        long hash = buf.getLong(buf.readerIndex());
+
+        NbtCompound placeholder = IllustrationDataSync.readData(buf);
+        Assertions.assertTrue(placeholder.isEmpty());
+
+        PacketByteBuf response = new PacketByteBuf(Unpooled.buffer());
+        response.writeInt(1);
+        response.writeLong(hash);
+        response.writeNbt(data);
+        Assertions.assertTrue(IllustrationDataSync.handleData(response));
+        Assertions.assertEquals(data, placeholder);
+
+        PacketByteBuf again = new PacketByteBuf(Unpooled.buffer());
+        again.writeLong(hash);
+        Assertions.assertSame(placeholder, IllustrationDataSync.readData(again), "Received payloads should be cached");
+    }
+
+    @Test
+    public void servedPayloadsDoNotFollowLaterChanges() {
+        NbtCompound data = createArmourData();
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+        IllustrationDataSync.writeData(buf, data);
+        long hash = buf.readLong();
+        data.putString("CustomName", "{\"text\":\"Impostor\"}");
+
+        PacketByteBuf response = IllustrationDataSync.createDataPacket(new long[] {hash});
+        Assertions.assertEquals(1, response.readInt());
+        Assertions.assertEquals(hash, response.readLong());
+        Assertions.assertEquals(createArmourData(), response.readNbt());
+    }
+
+    private static NbtCompound createArmourData() {
+        NbtCompound data = new NbtCompound();
+        NbtCompound helmet = new NbtCompound();
+        helmet.putString("id", "minecraft:diamond_helmet");
+        helmet.putByte("Count", (byte) 1);
+        data.put("HelmetItem", helmet);
+        data.putString("CustomName", "{\"text\":\"Guard\"}");
+        return data;
+    }
+}
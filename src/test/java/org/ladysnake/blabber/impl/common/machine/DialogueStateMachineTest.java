@@ -0,0 +1,164 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.machine;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.mojang.serialization.JsonOps;
+import io.netty.buffer.Unpooled;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.entity.Entity;
+import net.minecraft.loot.condition.LootCondition;
+import net.minecraft.loot.condition.LootConditionType;
+import net.minecraft.loot.condition.LootConditionTypes;
+import net.minecraft.loot.context.LootContext;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.test.GameTestException;
+import net.minecraft.util.Identifier;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.validation.DialogueValidatorTest;
+import org.ladysnake.blabber.impl.common.validation.ValidationResult;
+
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class DialogueStateMachineTest {
+    private static final int ITERATIONS = 100_000;
+    /**
+     * The conditions used here never look at the context
+     */
+    private static final ChoiceConditionContext NO_CONTEXT = new ChoiceConditionContext() {
+        @Override
+        public ServerPlayerEntity getPlayer() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Entity getInterlocutor() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LootContext getLootContext() {
+            return null;
+        }
+    };
+
+    @BeforeAll
+    public static void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    public void steadyStateConditionUpdatesDoNotAllocate() throws Exception {
+        Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean, "Allocation counting is not supported by this JVM");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(), "Allocation counting is disabled");
+
+        DialogueTemplate template = loadDialogue("/conditional_dialogue.json");
+        Map<Identifier, LootCondition> predicates = Map.of(
+                new Identifier("babblings", "full_health"), new ConstantCondition(true),
+                new Identifier("babblings", "holding_emerald"), new ConstantCondition(false)
+        );
+        ChoiceConditionTable conditionTable = ChoiceConditionTable.resolve(template, predicates::get, error -> Assertions.fail(error.message()));
+        DialogueStateMachine dialogue = new DialogueStateMachine(new Identifier("blabber", "test"), template, conditionTable, "bargain");
+
+        Assertions.assertTrue(dialogue.updateConditions(NO_CONTEXT), "The first update should report initial availability");
+        dialogue.writeAvailabilityDelta(new PacketByteBuf(Unpooled.buffer()));
+        for (int i = 0; i < ITERATIONS; i++) {
+            Assertions.assertFalse(dialogue.updateConditions(NO_CONTEXT));
+        }
+
+        long threadId = Thread.currentThread().getId();
+        threads.getThreadAllocatedBytes(threadId);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        boolean changed = false;
+        for (int i = 0; i < ITERATIONS; i++) {
+            changed |= dialogue.updateConditions(NO_CONTEXT);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        Assertions.assertFalse(changed, "Constant conditions should never report changes");
+        // Any per-update allocation would be at least 16 bytes each time, anything below is measurement noise
+        Assertions.assertTrue(allocated < ITERATIONS, "Steady state condition updates allocated %d bytes over %d updates".formatted(allocated, ITERATIONS));
+    }
+
+    @Test
+    public void fullUpdatesCoverPendingChanges() throws Exception {
+        DialogueTemplate template = loadDialogue("/conditional_dialogue.json");
+        Map<Identifier, LootCondition> predicates = Map.of(
+                new Identifier("babblings", "full_health"), new ConstantCondition(true),
+                new Identifier("babblings", "holding_emerald"), new ConstantCondition(false)
+        );
+        ChoiceConditionTable conditionTable = ChoiceConditionTable.resolve(template, predicates::get, error -> Assertions.fail(error.message()));
+        DialogueStateMachine dialogue = new DialogueStateMachine(new Identifier("blabber", "test"), template, conditionTable, "bargain");
+
+        Assertions.assertTrue(dialogue.updateConditions(NO_CONTEXT), "The first update should report initial availability");
+        // Like the opening data of a dialogue screen
+        dialogue.writeFullAvailabilityUpdate(new PacketByteBuf(Unpooled.buffer()));
+        Assertions.assertFalse(dialogue.updateConditions(NO_CONTEXT), "Changes sent in a full update should not be sent again as a delta");
+    }
+
+    @Test
+    public void missingPredicatesAreReportedOnce() throws Exception {
+        String choice = "{\"next\": \"end\", \"only_if\": {\"predicate\": \"babblings:missing\", \"when_unavailable\": {\"display\": \"hidden\"}}}";
+        DialogueTemplate template = DialogueValidatorTest.getResult(DialogueTemplate.CODEC.parse(JsonOps.INSTANCE, new Gson().fromJson(
+                "{\"start_at\": \"start\", \"states\": {\"start\": {\"choices\": [" + choice + ", " + choice + ", " + choice + "]}, \"end\": {\"type\": \"end_dialogue\"}}}",
+                JsonElement.class
+        )), s -> {
+            throw new GameTestException(s);
+        });
+        List<ValidationResult.Error> errors = new ArrayList<>();
+        ChoiceConditionTable conditionTable = ChoiceConditionTable.resolve(template, id -> null, errors::add);
+
+        Assertions.assertEquals(1, errors.size(), () -> "Expected a single error, got " + errors);
+        int offset = conditionTable.getOffset("start");
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(ChoiceConditionTable.NO_PREDICATE, conditionTable.getPredicateIndex(offset + i));
+        }
+    }
+
+    private static DialogueTemplate loadDialogue(String name) throws Exception {
+        return DialogueValidatorTest.getResult(DialogueTemplate.CODEC.parse(JsonOps.INSTANCE, new Gson().fromJson(new InputStreamReader(Objects.requireNonNull(DialogueStateMachineTest.class.getResourceAsStream(name))), JsonElement.class)), s -> {
+            throw new GameTestException(s);
+        });
+    }
+
+    private record ConstantCondition(boolean value) implements LootCondition {
+        @Override
+        public LootConditionType getType() {
+            return LootConditionTypes.SURVIVES_EXPLOSION;
+        }
+
+        @Override
+        public boolean test(LootContext context) {
+            return this.value;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.model;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.mojang.serialization.JsonOps;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.impl.common.BlabberRegistrar;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+public class DialogueTemplateReaderTest {
+    private static final List<String> DIALOGUES = List.of(
+            "/data/babblings/blabber/dialogues/illustration_tests.json",
+            "/data/babblings/blabber/dialogues/mountain_king.json",
+            "/data/babblings/blabber/dialogues/perception_check.json",
+            "/data/babblings/blabber/dialogues/remnant_choice.json",
+            "/conditional_dialogue.json",
+            "/incomplete_dialogue.json",
+            "/invalid_reference.json",
+            "/looping_dialogue.json"
+    );
+    private static final List<String> VARIANTS = List.of(
+            // accepted by the codec
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"type\": \"end_dialogue\"}}}",
+            "{\"start_at\": \"a\", \"unknown\": [1, {\"x\": null}], \"states\": {\"a\": {\"text\": [{}], \"type\": \"End_Dialogue\"}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"text\": [{\"text\": \"one\"}]}, \"a\": {\"text\": [{\"text\": \"two\"}], \"type\": \"end_dialogue\"}}}",
+            "{\"start_at\": \"a\", \"unskippable\": true, \"condition_refresh_ticks\": 20, \"states\": {\"a\": {\"choices\": [{\"text\": {\"translate\": \"x\"}, \"next\": \"b\", \"only_if\": {\"predicate\": \"babblings:test\", \"when_unavailable\": {\"display\": \"hidden\", \"message\": \"no\"}}}]}, \"b\": {\"type\": \"end_dialogue\"}}}",
+            "{start_at: a, states: {a: {type: end_dialogue}}}",
+            "{\"start_at\": \"a\", \"unskippable\": \"yes\", \"states\": {\"a\": {\"type\": \"end_dialogue\"}}}",
+            "{\"start_at\": \"a\", \"condition_refresh_ticks\": 0, \"states\": {\"a\": {\"type\": \"end_dialogue\"}}}",
+            "{\"start_at\": \"a\", \"condition_refresh_ticks\": 2.5, \"states\": {\"a\": {\"type\": \"end_dialogue\"}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"text\": null, \"type\": \"end_dialogue\"}}}",
+            // rejected by the codec
+            "",
+            "[]",
+            "{\"states\": {}}",
+            "{\"start_at\": \"a\"}",
+            "{\"start_at\": 1, \"states\": {}}",
+            "{\"start_at\": \"a\", \"states\": []}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"type\": \"nope\"}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"text\": \"not a list\"}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"choices\": [{\"text\": \"no next\"}]}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"choices\": [{\"next\": \"a\", \"only_if\": {\"when_unavailable\": {\"display\": \"hidden\"}}}]}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"choices\": [{\"next\": \"a\", \"only_if\": {\"predicate\": \"Not An Id\", \"when_unavailable\": {\"display\": \"hidden\"}}}]}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"choices\": [{\"next\": \"a\", \"only_if\": {\"predicate\": \"a:b\", \"when_unavailable\": {\"display\": \"invisible\"}}}]}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"action\": {\"type\": \"blabber:nope\"}}}}",
+            "{\"start_at\": \"a\", \"illustrations\": {\"x\": {\"type\": \"blabber:nope\"}}, \"states\": {\"a\": {\"type\": \"end_dialogue\"}}}",
+            "{\"start_at\": \"a\", \"layout\": {\"type\": \"blabber:nope\"}, \"states\": {\"a\": {\"type\": \"end_dialogue\"}}}",
+            "{\"start_at\": \"a\", \"states\": {\"a\": {\"type\": \"end_dialogue\"}}} trailing"
+    );
+    private static final Gson GSON = new Gson();
+
+    @BeforeAll
+    public static void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+        if (!BlabberRegistrar.ILLUSTRATION_REGISTRY.containsId(Blabber.id("item"))) {
+            // Entrypoints do not run in unit tests, but the testmod dialogues need the builtin illustrations
+            new Blabber().onInitialize();
+        }
+    }
+
+    @Test
+    public void corpusDecodesLikeTheCodec() throws IOException {
+        for (String name : DIALOGUES) {
+            byte[] content;
+            try (InputStream in = Objects.requireNonNull(DialogueTemplateReaderTest.class.getResourceAsStream(name))) {
+                content = in.readAllBytes();
+            }
+            assertSameOutcome(name, content);
+            if (decodeWithCodec(content).isPresent()) {
+                Assertions.assertTrue(DialogueTemplateReader.read(content).isPresent(), () -> name + " should not need the codec");
+            }
+        }
+    }
+
+    @Test
+    public void variantsAreJudgedLikeTheCodec() {
+        for (String variant : VARIANTS) {
+            assertSameOutcome(variant, variant.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void outlinesMatchDecodedTemplates() throws IOException {
+        for (String name : DIALOGUES) {
+            byte[] content;
+            try (InputStream in = Objects.requireNonNull(DialogueTemplateReaderTest.class.getResourceAsStream(name))) {
+                content = in.readAllBytes();
+            }
+            assertSameOutline(name, content);
+            if (decodeWithCodec(content).isPresent()) {
+                Assertions.assertTrue(DialogueTemplateReader.readOutline(content).isPresent(), () -> name + " should not need the codec to be outlined");
+            }
+        }
+        for (String variant : VARIANTS) {
+            assertSameOutline(variant, variant.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Outlines skip over the values that only decoding checks, so they only have to match for files the codec accepts
+     */
+    private static void assertSameOutline(String name, byte[] content) {
+        decodeWithCodec(content).ifPresent(template -> Assertions.assertEquals(
+                Optional.of(DialogueOutline.of(template)),
+                DialogueTemplateReader.readOutline(content).or(() -> Optional.of(DialogueOutline.of(template))),
+                () -> "Outline differs for " + name
+        ));
+    }
+
+    /**
+     * Checks that loading through the reader, then through the codec if it gave up, matches loading through the codec alone
+     */
+    private static void assertSameOutcome(String name, byte[] content) {
+        Optional<DialogueTemplate> expected = decodeWithCodec(content);
+        Optional<DialogueTemplate> actual = DialogueTemplateReader.read(content).or(() -> decodeWithCodec(content));
+        Assertions.assertEquals(expected.isPresent(), actual.isPresent(), () -> "Acceptance differs for " + name);
+        // Some illustrations and actions do not implement equals, so compare the canonical JSON of both templates
+        expected.ifPresent(template -> Assertions.assertEquals(encode(template), encode(actual.get()), () -> "Decoded template differs for " + name));
+    }
+
+    private static Optional<DialogueTemplate> decodeWithCodec(byte[] content) {
+        try {
+            JsonObject json = GSON.fromJson(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8), JsonObject.class);
+            return DialogueTemplate.CODEC.parse(JsonOps.INSTANCE, json).result();
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static JsonElement encode(DialogueTemplate template) {
+        return DialogueTemplate.CODEC.encodeStart(JsonOps.INSTANCE, template).result().orElseThrow();
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Blabber
+ * Copyright (C) 2022-2024 Ladysnake
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; If not, see <https://www.gnu.org/licenses>.
+ */
+package org.ladysnake.blabber.impl.common.serialization;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.mojang.serialization.JsonOps;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.item.ItemStack;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.test.GameTestException;
+import net.minecraft.text.Text;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.registry.Registry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.ladysnake.blabber.Blabber;
+import org.ladysnake.blabber.api.illustration.DialogueIllustration;
+import org.ladysnake.blabber.api.layout.DefaultLayoutParams;
+import org.ladysnake.blabber.api.layout.DialogueLayout;
+import org.ladysnake.blabber.api.layout.Margins;
+import org.ladysnake.blabber.impl.common.BlabberRegistrar;
+import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationCollection;
+import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationItem;
+import org.ladysnake.blabber.impl.common.illustrations.DialogueIllustrationTexture;
+import org.ladysnake.blabber.impl.common.illustrations.entity.DialogueIllustrationSelectorEntity;
+import org.ladysnake.blabber.impl.common.illustrations.entity.StareTarget;
+import org.ladysnake.blabber.impl.common.model.ChoiceResult;
+import org.ladysnake.blabber.impl.common.model.DialogueChoice;
+import org.ladysnake.blabber.impl.common.model.DialogueChoiceCondition;
+import org.ladysnake.blabber.impl.common.model.DialogueRandomAnswer;
+import org.ladysnake.blabber.impl.common.model.DialogueState;
+import org.ladysnake.blabber.impl.common.model.DialogueTemplate;
+import org.ladysnake.blabber.impl.common.model.IllustrationAnchor;
+import org.ladysnake.blabber.impl.common.model.UnavailableAction;
+import org.ladysnake.blabber.impl.common.model.UnavailableDisplay;
+import org.ladysnake.blabber.impl.common.validation.DialogueValidatorTest;
+
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Random;
+
+public class CompactPacketByteBufTest {
+    /**
+     * The largest compact size allowed for each test dialogue, as a fraction of its legacy size.
+     * Lower these when the encoding gets better, so that it cannot silently get worse again.
+     */
+    private static final Map<String, Double> SIZE_BUDGETS = Map.of(
+            "/data/babblings/blabber/dialogues/illustration_tests.json", 0.95,
+            "/data/babblings/blabber/dialogues/mountain_king.json", 0.97,
+            "/data/babblings/blabber/dialogues/perception_check.json", 0.92,
+            "/data/babblings/blabber/dialogues/remnant_choice.json", 0.85,
+            "/conditional_dialogue.json", 1.0
+    );
+    private static final double CORPUS_SIZE_BUDGET = 0.92;
+    private static final List<Identifier> ITEMS = List.of(new Identifier("diamond"), new Identifier("apple"), new Identifier("diamond_pickaxe"), new Identifier("writable_book"));
+
+    @BeforeAll
+    public static void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+        if (!BlabberRegistrar.ILLUSTRATION_REGISTRY.containsId(Blabber.id("item"))) {
+            // Entrypoints do not run in unit tests, but the testmod dialogues need the builtin illustrations
+            new Blabber().onInitialize();
+        }
+    }
+
+    @Test
+    public void randomDataRoundTrips() {
+        Random random = new Random(42);
+        for (int run = 0; run < 200; run++) {
+            List<String> pool = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(10); i++) {
+                pool.add(randomString(random));
+            }
+            List<Object> written = new ArrayList<>();
+            CompactPacketByteBuf out = new CompactPacketByteBuf(Unpooled.buffer()).writeFormatVersion();
+            for (int i = 0; i < 50; i++) {
+                switch (random.nextInt(3)) {
+                    case 0 -> {
+                        String s = pool.get(random.nextInt(pool.size()));
+                        out.writeString(s);
+                        written.add(s);
+                    }
+                    case 1 -> {
+                        int value = random.nextBoolean() ? random.nextInt(200) - 100 : random.nextInt();
+                        OptionalSerialization.writeSignedVarInt(out, value);
+                        written.add(value);
+                    }
+                    default -> {
+                        OptionalInt[] values = new OptionalInt[1 + random.nextInt(8)];
+                        for (int j = 0; j < values.length; j++) {
+                            values[j] = random.nextBoolean() ? OptionalInt.of(random.nextInt()) : OptionalInt.empty();
+                        }
+                        OptionalSerialization.writeOptionalInts(out, values);
+                        written.add(values);
+                    }
+                }
+            }
+
+            CompactPacketByteBuf in = new CompactPacketByteBuf(Unpooled.copiedBuffer(out)).readFormatVersion();
+            for (Object expected : written) {
+                if (expected instanceof String s) {
+                    Assertions.assertEquals(s, in.readString());
+                } else if (expected instanceof Integer value) {
+                    Assertions.assertEquals(value, OptionalSerialization.readSignedVarInt(in));
+                } else {
+                    OptionalInt[] values = (OptionalInt[]) expected;
+                    Assertions.assertArrayEquals(values, OptionalSerialization.readOptionalInts(in, values.length));
+                }
+            }
+            Assertions.assertEquals(0, in.readableBytes(), "Leftover bytes after reading everything back");
+        }
+    }
+
+    @Test
+    public void mismatchedVersionIsRejected() {
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer()).writeVarInt(CompactPacketByteBuf.FORMAT_VERSION + 1);
+        Assertions.assertThrows(DecoderException.class, () -> new CompactPacketByteBuf(buf).readFormatVersion());
+    }
+
+    @Test
+    public void templatesMatchTheLegacyEncoding() throws Exception {
+        int legacyTotal = 0;
+        int compactTotal = 0;
+        for (Map.Entry<String, Double> budget : SIZE_BUDGETS.entrySet()) {
+            String name = budget.getKey();
+            DialogueTemplate template = loadDialogue(name);
+            int legacySize = writeLegacy(template).length;
+            int compactSize = writeCompact(template).length;
+            legacyTotal += legacySize;
+            compactTotal += compactSize;
+            Assertions.assertTrue(compactSize <= legacySize * budget.getValue(), "%s takes %d bytes in the compact format, over its budget of %.0f%% of %d bytes".formatted(name, compactSize, budget.getValue() * 100, legacySize));
+
+            assertRoundTrips(name, template);
+        }
+        Assertions.assertTrue(compactTotal <= legacyTotal * CORPUS_SIZE_BUDGET, "Compact encoding of the corpus is %d bytes, over its budget of %.0f%% of %d bytes".formatted(compactTotal, CORPUS_SIZE_BUDGET * 100, legacyTotal));
+    }
+
+    @Test
+    public void randomTemplatesRoundTrip() {
+        Random random = new Random(1337);
+        for (int run = 0; run < 200; run++) {
+            assertRoundTrips("random template #" + run, randomTemplate(random));
+        }
+    }
+
+    /**
+     * Checks that the compact format decodes to the same template as the legacy format, and re-encodes to the same bytes.
+     *
+     * <p>Templates are compared through their legacy encoding, as illustrations holding item stacks do not implement equality.
+     */
+    private static void assertRoundTrips(String name, DialogueTemplate template) {
+        byte[] legacy = writeLegacy(template);
+        byte[] compact = writeCompact(template);
+
+        DialogueTemplate fromLegacy = new DialogueTemplate(new PacketByteBuf(Unpooled.wrappedBuffer(legacy)));
+        CompactPacketByteBuf compactIn = new CompactPacketByteBuf(Unpooled.wrappedBuffer(compact)).readFormatVersion();
+        DialogueTemplate fromCompact = new DialogueTemplate(compactIn);
+        Assertions.assertEquals(0, compactIn.readableBytes(), name + " left bytes behind");
+
+        Assertions.assertEquals(fromLegacy.start(), fromCompact.start(), name + " decoded a different start state");
+        Assertions.assertEquals(fromLegacy.unskippable(), fromCompact.unskippable(), name + " decoded a different skippability");
+        Assertions.assertEquals(fromLegacy.states(), fromCompact.states(), name + " decoded different states");
+        Assertions.assertEquals(fromLegacy.illustrations().keySet(), fromCompact.illustrations().keySet(), name + " decoded different illustrations");
+        Assertions.assertEquals(fromLegacy.layout(), fromCompact.layout(), name + " decoded a different layout");
+        Assertions.assertEquals(fromLegacy.conditionRefreshTicks(), fromCompact.conditionRefreshTicks(), name + " decoded a different refresh rate");
+        Assertions.assertArrayEquals(legacy, writeLegacy(fromCompact), name + " decoded differently from the legacy format");
+        Assertions.assertArrayEquals(compact, writeCompact(fromCompact), name + " does not encode the same way after a round trip");
+    }
+
+    private static byte[] writeLegacy(DialogueTemplate template) {
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+        DialogueTemplate.writeToPacket(buf, template);
+        return toByteArray(buf);
+    }
+
+    private static byte[] writeCompact(DialogueTemplate template) {
+        CompactPacketByteBuf buf = new CompactPacketByteBuf(Unpooled.buffer()).writeFormatVersion();
+        DialogueTemplate.writeToPacket(buf, template);
+        return toByteArray(buf);
+    }
+
+    private static byte[] toByteArray(PacketByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    private static DialogueTemplate randomTemplate(Random random) {
+        Map<String, DialogueIllustration> illustrations = new LinkedHashMap<>();
+        List<DialogueIllustration> pool = new ArrayList<>();
+        int illustrationCount = random.nextInt(8);
+        for (int i = 0; i < illustrationCount; i++) {
+            DialogueIllustration illustration;
+            if (!pool.isEmpty() && random.nextInt(3) == 0) {
+                // Same illustration under another name, which the compact format only writes once
+                illustration = pool.get(random.nextInt(pool.size()));
+            } else if (!pool.isEmpty() && random.nextInt(4) == 0) {
+                List<DialogueIllustration> elements = new ArrayList<>();
+                int elementCount = 1 + random.nextInt(4);
+                for (int j = 0; j < elementCount; j++) {
+                    elements.add(random.nextBoolean() ? pool.get(random.nextInt(pool.size())) : randomIllustration(random));
+                }
+                illustration = new DialogueIllustrationCollection(elements);
+            } else {
+                illustration = randomIllustration(random);
+            }
+            pool.add(illustration);
+            illustrations.put("illustration_" + i, illustration);
+        }
+        List<String> illustrationNames = new ArrayList<>(illustrations.keySet());
+
+        int stateCount = 1 + random.nextInt(8);
+        Map<String, DialogueState> states = new LinkedHashMap<>();
+        for (int i = 0; i < stateCount; i++) {
+            List<DialogueRandomAnswer> text = new ArrayList<>();
+            int answerCount = random.nextInt(3);
+            for (int j = 0; j < answerCount; j++) {
+                text.add(new DialogueRandomAnswer(randomText(random)));
+            }
+            List<DialogueChoice> choices = new ArrayList<>();
+            int choiceCount = random.nextInt(4);
+            for (int j = 0; j < choiceCount; j++) {
+                Optional<DialogueChoiceCondition> condition = random.nextBoolean() ? Optional.empty() : Optional.of(new DialogueChoiceCondition(
+                        Optional.of(new Identifier("babblings", "predicate_" + random.nextInt(3))),
+                        Optional.empty(),
+                        new UnavailableAction(random.nextBoolean() ? UnavailableDisplay.HIDDEN : UnavailableDisplay.GRAYED_OUT, random.nextBoolean() ? Optional.of(randomText(random)) : Optional.empty())
+                ));
+                choices.add(new DialogueChoice(randomText(random), randomNames(random, illustrationNames), "state_" + random.nextInt(stateCount), condition));
+            }
+            ChoiceResult type = ChoiceResult.values()[random.nextInt(ChoiceResult.values().length)];
+            states.put("state_" + i, new DialogueState(text, randomNames(random, illustrationNames), choices, Optional.empty(), type));
+        }
+
+        DialogueLayout<?> layout = random.nextBoolean() ? DialogueLayout.DEFAULT : new DialogueLayout<>(
+                random.nextBoolean() ? BlabberRegistrar.CLASSIC_LAYOUT : BlabberRegistrar.RPG_LAYOUT,
+                new DefaultLayoutParams(random.nextBoolean() ? Optional.empty() : Optional.of(new Margins(randomCoordinate(random), randomCoordinate(random), randomCoordinate(random), randomCoordinate(random))))
+        );
+        return new DialogueTemplate("state_" + random.nextInt(stateCount), random.nextBoolean(), states, illustrations, layout, 1 + random.nextInt(40));
+    }
+
+    private static DialogueIllustration randomIllustration(Random random) {
+        IllustrationAnchor anchor = IllustrationAnchor.values()[random.nextInt(IllustrationAnchor.values().length)];
+        return switch (random.nextInt(3)) {
+            case 0 -> {
+                ItemStack stack = new ItemStack(Registry.ITEM.get(ITEMS.get(random.nextInt(ITEMS.size()))), 1 + random.nextInt(64));
+                if (random.nextBoolean()) stack.setDamage(random.nextInt(100));
+                yield new DialogueIllustrationItem(stack, anchor, randomCoordinate(random), randomCoordinate(random), random.nextFloat() * 4, random.nextBoolean());
+            }
+            case 1 -> new DialogueIllustrationTexture(
+                    new Identifier("babblings", "textures/gui/" + random.nextInt(4) + ".png"),
+                    anchor,
+                    randomCoordinate(random),
+                    randomCoordinate(random),
+                    random.nextInt(256),
+                    random.nextInt(256),
+                    randomOptionalInt(random),
+                    randomOptionalInt(random),
+                    randomOptionalInt(random),
+                    randomOptionalInt(random),
+                    randomOptionalInt(random),
+                    randomOptionalInt(random)
+            );
+            default -> new DialogueIllustrationSelectorEntity(new DialogueIllustrationSelectorEntity.Spec(
+                    random.nextBoolean() ? "@s" : "@e[type=minecraft:villager,limit=1,sort=nearest]",
+                    anchor,
+                    randomCoordinate(random),
+                    randomCoordinate(random),
+                    random.nextInt(200),
+                    random.nextInt(200),
+                    random.nextInt(100),
+                    random.nextFloat() - 0.5f,
+                    random.nextBoolean() ? StareTarget.FOLLOW_MOUSE : new StareTarget(
+                            random.nextBoolean() ? Optional.of(IllustrationAnchor.values()[random.nextInt(IllustrationAnchor.values().length)]) : Optional.empty(),
+                            randomOptionalInt(random),
+                            randomOptionalInt(random)
+                    )
+            ));
+        };
+    }
+
+    private static Text randomText(Random random) {
+        return random.nextBoolean() ? Text.literal(randomString(random)) : Text.translatable("babblings:dialogue.random." + random.nextInt(5));
+    }
+
+    private static List<String> randomNames(Random random, List<String> names) {
+        List<String> picked = new ArrayList<>();
+        if (names.isEmpty()) return picked;
+        int count = random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            // Duplicates allowed, a state may show the same illustration twice
+            picked.add(names.get(random.nextInt(names.size())));
+        }
+        return picked;
+    }
+
+    /**
+     * @return mostly small coordinates on either side of the anchor, and sometimes extreme ones
+     */
+    private static int randomCoordinate(Random random) {
+        return random.nextInt(5) == 0 ? random.nextInt() : random.nextInt(801) - 400;
+    }
+
+    private static OptionalInt randomOptionalInt(Random random) {
+        return random.nextBoolean() ? OptionalInt.of(randomCoordinate(random)) : OptionalInt.empty();
+    }
+
+    private static String randomString(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < random.nextInt(20); i++) {
+            // Mix in some characters that take several bytes in UTF-8
+            sb.append(random.nextInt(4) == 0 ? (char) ('à' + random.nextInt(64)) : (char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    private static DialogueTemplate loadDialogue(String name) throws Exception {
+        return DialogueValidatorTest.getResult(DialogueTemplate.CODEC.parse(JsonOps.INSTANCE, new Gson().fromJson(new InputStreamReader(Objects.requireNonNull(CompactPacketByteBufTest.class.getResourceAsStream(name))), JsonElement.class)), s -> {
+            throw new GameTestException(s);
+        });
+    }
+}